@@ -29,6 +29,14 @@ public class Client
     private BigInteger gb;
     private BigInteger gab;
     private BigInteger g;
+    private String kex;   // key exchange mode proposed to the server
+    private String records;  // record mode proposed to the server, then as confirmed by it
+    private CryptoSession session;  // record protection, set up by getKey
+    private String host;  // server as given on the command line
+    private int port;
+    private int retries;  // key exchanges the server has answered "busy"
+    private String sessionFile;  // ticket file for session resumption, or null
+    private byte[] master;  // master secret of a new session
     /**
      * Utility for printing protocol messages
      * @param s protocol message to be printed
@@ -45,27 +53,47 @@ public class Client
      * Constructor, in this case does everything.
      * @param ipaddress The hostname to connect to.
      * @param port The port to connect to.
+     * @param setKex key exchange mode to propose to the server
+     * @param setRecords record protection mode to propose to the server
+     * @param setSessionFile ticket file for resuming sessions, or null
      */
-    public Client (String ipaddress, int port, boolean setDebug)
+    public Client (String ipaddress, int port, boolean setDebug, String setKex, String setRecords, String setSessionFile)
     {
 	// set the debug flag
 	debug = setDebug;
+	kex = setKex;
+	records = setRecords;
+	host = ipaddress;
+	this.port = port;
+	sessionFile = setSessionFile;
 
 	// open reader for usesr input
 	stdIn = new BufferedReader(new InputStreamReader(System.in));
 
+	connect();
+    }
+
+
+
+
+    /**
+     * Connects to the server and opens the input and output streams.
+     * @return true if connected
+     */
+    private boolean connect()
+    {
 	// Try to connect to the specified host on the specified port.
 	try {
-	    sock = new Socket (InetAddress.getByName(ipaddress), port);
+	    sock = new Socket (InetAddress.getByName(host), port);
 	}
 	catch (UnknownHostException e) {
 	    System.out.println ("Usage: java Client hostname port#");
 	    System.out.println ("First argument is not a valid hostname");
-	    return;
+	    return false;
 	}
 	catch (IOException e) {
-	    System.out.println ("Could not connect to " + ipaddress + ".");
-	    return;
+	    System.out.println ("Could not connect to " + host + ".");
+	    return false;
 	}
 		
 	// Status info
@@ -77,26 +105,162 @@ public class Client
 	in = null;
 	out = null;
 	try {
-	    in = new DataInputStream(sock.getInputStream());
-	    out = new DataOutputStream(sock.getOutputStream());
+	    // messages are flushed at the end of each flight, so Nagle's algorithm only adds delay
+	    sock.setTcpNoDelay(true);
+	    in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+	    out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
 	}
 	catch (UnknownHostException e) {
 	    System.out.println ("Unknown host error.");
 	    close();
+	    return false;
 	}
 	catch (IOException e) {
 	    System.out.println ("Could not create output stream.");
 	    close();
+	    return false;
 	}
+	return true;
     }
 
 
 
 
     /**
-     * Prompts user for a sting to be used as seed for deriving the AES key
+     * Agrees on an AES key with the server.  Proposes the client's record and
+     * key exchange modes and offers the session in the ticket file, if any.  If
+     * the server resumes the session the key is derived from its master secret,
+     * otherwise the exchange runs in the mode the server answers with and the
+     * new session is saved to the ticket file.  If the server is too busy for a
+     * new key exchange, the client reconnects and tries again a little later.
      */
     public void getKey() {
+	SessionTicket ticket = sessionFile != null ? SessionTicket.load(sessionFile, host, port) : null;
+	byte[] clientNonce = CryptoUtilities.nonce();
+	String mode;
+	byte[] sessionId;
+	try {
+	    CryptoUtilities.queue(records.getBytes(), out);
+	    CryptoUtilities.queue(kex.getBytes(), out);
+	    CryptoUtilities.queue(ticket != null ? ticket.get_id() : new byte[0], out);
+	    CryptoUtilities.send(clientNonce, out);
+	    String chosen = new String(CryptoUtilities.receive(in));
+	    if (!chosen.equals(records) && !chosen.equals(CryptoUtilities.RECORDS_CBC_HMAC))
+		throw new IOException("server chose a record mode that was not proposed");
+	    records = chosen;
+	    mode = new String(CryptoUtilities.receive(in));
+
+	    if (mode.equals(CryptoUtilities.KEX_BUSY)) {
+		retryKey();
+		return;
+	    }
+	    if (mode.equals(CryptoUtilities.KEX_RESUME)) {
+		if (ticket == null)
+		    throw new IOException("server resumed a session that was not offered");
+		byte[] serverNonce = CryptoUtilities.receive(in);
+		key = CryptoUtilities.resumption_key(ticket.get_master(), clientNonce, serverNonce);
+		debug("Resumed session, using key = " + CryptoUtilities.toHexString(key.getEncoded()));
+		session = new CryptoSession(key, records);
+		return;
+	    }
+	    sessionId = CryptoUtilities.receive(in);
+	}
+	catch (IOException e) {
+	    System.out.println("Error negotiating key exchange");
+	    return;
+	}
+	debug("Using " + mode + " key exchange");
+
+	if (mode.equals(CryptoUtilities.KEX_X25519))
+	    getKeyX25519();
+	else
+	    getKeyDH();
+
+	// remember the session for the next run
+	if (key != null && sessionFile != null) {
+	    try {
+		new SessionTicket(host, port, sessionId, master).save(sessionFile);
+	    }
+	    catch (IOException e) {
+		System.out.println("Could not save the session ticket.");
+	    }
+	}
+
+	// set up record protection for the rest of the connection
+	if (key != null)
+	    session = new CryptoSession(key, records);
+    }
+
+
+
+    /**
+     * Reconnects after the server has answered "busy" and starts the key
+     * exchange again, waiting longer before each retry, see
+     * CryptoUtilities.retry_delay.  Gives up after HANDSHAKE_RETRIES retries.
+     */
+    private void retryKey() {
+	// the server has closed the connection;  stdIn stays open for the file names
+	try {
+	    sock.close();
+	}
+	catch (IOException e) {
+	    System.out.println("Could not close socket.");
+	}
+
+	if (++retries > CryptoUtilities.HANDSHAKE_RETRIES) {
+	    System.out.println("Server is busy, giving up.");
+	    return;
+	}
+	long delay = CryptoUtilities.retry_delay(retries);
+	System.out.println("Server is busy, retrying in " + delay + " ms.");
+	try {
+	    Thread.sleep(delay);
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    return;
+	}
+
+	if (connect())
+	    getKey();
+    }
+
+
+
+
+    /**
+     * Agrees on an AES key with the server using X25519.  The client's public key
+     * is sent as soon as it is computed, so that the server can derive the key
+     * while the user is still naming the file.
+     */
+    private void getKeyX25519() {
+	KeyPair pair = X25519Exchange.generateKeyPair();
+	try {
+	    byte[] peer = CryptoUtilities.receive(in);
+	    CryptoUtilities.send(X25519Exchange.encode(pair.getPublic()), out);
+	    byte[] secret = X25519Exchange.secret(pair.getPrivate(), peer);
+	    key = CryptoUtilities.key_from_seed(secret);
+	    master = CryptoUtilities.master_from_seed(secret);
+	}
+	catch (IOException e) {
+	    System.out.println("Error in X25519 key exchange");
+	    return;
+	}
+	catch (GeneralSecurityException e) {
+	    System.out.println("Invalid X25519 public key from server");
+	    return;
+	}
+	debug("Using key = " + CryptoUtilities.toHexString(key.getEncoded()));
+    }
+
+
+
+    /**
+     * Agrees on an AES key with the server using Diffie-Hellman over the group
+     * the server sends.  The server sends p, g and gb in one flight, and ga is
+     * sent back as soon as it is computed, without waiting for the server.
+     */
+    private void getKeyDH() {
 	debug("Getting prime from Server");
 	
         try{
@@ -113,12 +277,23 @@ public class Client
         catch(IOException e){
             System.out.println("Error Receiving g");
 
+        }
+
+        try{
+            gb = new BigInteger(CryptoUtilities.receive(in));
+        }
+        catch(IOException e){
+            System.out.println("Error recieving gb");
+
         }
         debug("Calculating key");
         
-        a = new BigInteger(p.subtract(BigInteger.valueOf(2)).bitLength(), new Random());
-	
-		ga = g.modPow(a, p);
+	// the exponent is sized to the security level of p
+	DHGroup group = new DHGroup(p, g);
+	a = group.random_exponent(new SecureRandom());
+
+	// a single power of g:  a fixed-base table would cost far more than it saves
+	ga = g.modPow(a, p);
         
         try{
     		CryptoUtilities.send(ga.toByteArray(), out);
@@ -128,19 +303,12 @@ public class Client
     		
     	}
         
-        try{
-            gb = new BigInteger(CryptoUtilities.receive(in));
-        }
-        catch(IOException e){
-            System.out.println("Error recieving gb");
-
-        }
-        
         gab = gb.modPow(a, p);
         
 	
 	// compute key:  1st 16 bytes of SHA-1 hash of seed
 	key = CryptoUtilities.key_from_seed(gab.toByteArray());
+	master = CryptoUtilities.master_from_seed(gab.toByteArray());
  	debug("Using key = " + CryptoUtilities.toHexString(key.getEncoded()));
     }
 
@@ -157,10 +325,12 @@ public class Client
 	// get input file name
 	String infilename;
 	FileInputStream infile;
+	long size;
 	try {
 	    System.out.print("Please enter the source filename: ");
 	    infilename = stdIn.readLine();
 	    infile = new FileInputStream(infilename);
+	    size = new File(infilename).length();
 	}
 	catch (IOException e) {
 	    System.out.println ("Could not open source file");
@@ -183,8 +353,9 @@ public class Client
 
 	// send the output file name
 	try {
+	    // queued behind the last handshake message, flushed with the file
 	    debug("Sending output file name = " + outfilename);
-	    CryptoUtilities.encryptAndSend(outfilename.getBytes(),key,out);
+	    session.sealAndQueue(outfilename.getBytes(),out);
 	}
 	catch (IOException e) {
 	    System.out.println("Error sending the output file name");
@@ -195,8 +366,8 @@ public class Client
 
 	// send the file size
 	try {
-	    debug("Sending file size = " + infile.available());
-	    CryptoUtilities.encryptAndSend(String.valueOf(infile.available()).getBytes(), key,out);	
+	    debug("Sending file size = " + size);
+	    session.sealAndQueue(String.valueOf(size).getBytes(),out);
 	}
 	catch (IOException e) {
 	    System.out.println("Error sending the file length");
@@ -208,16 +379,22 @@ public class Client
 
 	// append message digest, encrypt, send file
 	try {
-	    debug("Encrypting and sending file with MAC appended");
-	    // read input file into a byte array
-	    byte[] msg = new byte[infile.available()];
-	    int read_bytes = infile.read(msg);
-
-	    // append HMAC-SHA-1 message digest
-	    byte[] hashed_msg = CryptoUtilities.append_hash(msg,key);
+	    if (size > CryptoUtilities.stream_threshold(records)) {
+		// large files are streamed in chunks so memory use stays constant
+		debug("Encrypting and sending file as a stream of chunks with MACs appended");
+		long sent = session.encryptAndSendStream(infile,out);
+		debug("Sent " + sent + " bytes");
+	    }
+	    else {
+		debug("Encrypting and sending file in " + records + " record mode");
+		// read input file into a byte array
+		byte[] msg = new byte[(int) size];
+		int read_bytes = infile.read(msg);
 
-	    // encrypt anad send
-	    CryptoUtilities.encryptAndSend(hashed_msg,key,out);
+		// append HMAC-SHA-1 message digest and encrypt, or encrypt with AES-GCM, and send
+		session.sealAndSend(msg,out);
+	    }
+	    infile.close();
 	}
 	catch (IOException e) {
 	    System.out.println("Error sending encrypted file");
@@ -231,7 +408,7 @@ public class Client
 	boolean transferOK = false;
 	try {
 	    debug("Waiting for server acknowledgement");
-	    String ack = new String(CryptoUtilities.receiveAndDecrypt(key,in));
+	    String ack = new String(session.receiveAndOpen(in));
 
 	    debug("Got acknowledgement = " + ack);
 	    if (ack.compareTo("Passed") == 0) {
@@ -280,10 +457,13 @@ public class Client
      * Outputs usage instructions
      */
     public static void printUsage() {
-	System.out.println ("Usage: java Client hostname port#");
-	System.out.println("     or java Client debug hostname port#");
+	System.out.println ("Usage: java Client hostname port# [debug] [kex dh|x25519] [records gcm|cbc-etm|cbc-hmac] [session filename]");
 	System.out.println (" - hostname is a string identifying your server");
 	System.out.println (" - port is a positive integer identifying the port to connect to the server");
+	System.out.println (" - debug prints protocol messages");
+	System.out.println (" - kex proposes a key exchange mode to the server (default dh)");
+	System.out.println (" - records proposes a record protection mode to the server (default cbc-hmac)");
+	System.out.println (" - session keeps a ticket in the given file to resume the session on the next run");
     }
 
 
@@ -296,36 +476,45 @@ public class Client
     public static void main (String [] args)
     {
 	boolean setDebug = false;
+	String kex = CryptoUtilities.KEX_DH;
+	String records = CryptoUtilities.RECORDS_CBC_HMAC;
+	String sessionFile = null;
 
-	if (args.length < 2 || args.length > 3) {
+	if (args.length < 2) {
 	    printUsage();
 	    return;
 	}
 
-	// check if debug flag is being set
-	String ipaddress;
+	// check for the optional debug flag and key exchange mode
+	String ipaddress = args[0];
 	int port;
-	if (args.length == 3) {
-	    if (args[2].compareTo("debug") == 0) {
+	for (int i = 2; i < args.length; i++) {
+	    if (args[i].compareTo("debug") == 0) {
 		setDebug = true;
-		ipaddress = args[0];
-		port = Integer.parseInt(args[1]);
+	    }
+	    else if (args[i].compareTo("kex") == 0 && i+1 < args.length
+		     && (args[i+1].equals(CryptoUtilities.KEX_DH) || args[i+1].equals(CryptoUtilities.KEX_X25519))) {
+		kex = args[++i];
+	    }
+	    else if (args[i].compareTo("records") == 0 && i+1 < args.length
+		     && CryptoUtilities.record_mode(args[i+1]).equals(args[i+1])) {
+		records = args[++i];
+	    }
+	    else if (args[i].compareTo("session") == 0 && i+1 < args.length) {
+		sessionFile = args[++i];
 	    }
 	    else {
 		printUsage();
 		return;
 	    }
 	}
-	else {
-	    ipaddress = args[0];
-	    port = Integer.parseInt(args[1]);
-	}
 
 
 	// initialize client and socket connections
 	Client c;
 	try {
-	    c = new Client (ipaddress, port, setDebug);
+	    port = Integer.parseInt(args[1]);
+	    c = new Client (ipaddress, port, setDebug, kex, records, sessionFile);
 	}
 	catch (NumberFormatException e) {
 	    printUsage();
@@ -338,8 +527,9 @@ public class Client
 	c.getKey();
 
 
-	// do file transfer
-	c.sendFile();
+	// do file transfer, unless the handshake failed or the server stayed busy
+	if (c.session != null)
+	    c.sendFile();
 
 
 	// shut down the client
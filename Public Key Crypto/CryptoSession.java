@@ -0,0 +1,727 @@
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * This class protects the records of one session.  It is created once the key
+ * exchange has agreed on a key and a record mode, and holds the cipher and MAC
+ * instances for that key so that provider lookup and key setup are not repeated
+ * for every record.  A session belongs to the thread that runs the connection
+ * and must not be shared between threads.
+ *
+ * Large CBC records can be decrypted on several cores, see setParallelCBC.
+ *
+ * Records are protected in one of three modes:
+ *
+ *   cbc-hmac - an HMAC-SHA1 digest is appended and the result encrypted with
+ *              AES-CBC, followed by the encoded IV (AES_PARAM_LEN bytes)
+ *   cbc-etm  - a random IV, then the AES-CBC ciphertext, then an HMAC-SHA256
+ *              tag over both under a key derived from the session key, so
+ *              that a forged record is rejected before it is decrypted
+ *   gcm      - a random IV, then the AES-GCM ciphertext and tag
+ *
+ * @author Pujan Bhatta
+ * @version 1.0
+ */
+public class CryptoSession
+{
+    // DER header of the encoded CBC parameters:  an OCTET STRING of 16 bytes
+    private static final byte[] CBC_PARAM_HEADER = { 0x04, 0x10 };
+
+    // label hashed with the session key to derive the cbc-etm MAC key
+    private static final byte[] ETM_MAC_LABEL = "cbc-etm mac key".getBytes();
+
+    // source of record IVs
+    private static final SecureRandom IV_RANDOM = new SecureRandom();
+
+    // pool shared by all sessions for the segments of large CBC records
+    private static final ForkJoinPool CBC_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    // AES-CBC without padding for decrypting segments, one per thread
+    private static final ThreadLocal<Cipher> CBC_SEGMENT_CIPHER = new ThreadLocal<Cipher>() {
+	    protected Cipher initialValue() {
+		try {
+		    return Cipher.getInstance("AES/CBC/NoPadding");
+		}
+		catch (GeneralSecurityException e) {
+		    throw new IllegalStateException("AES-CBC is not available", e);
+		}
+	    }
+	};
+
+    private final SecretKeySpec key;
+    private final String mode;
+    private final Cipher cipher;  // AES in the session's mode, initialised per record with a fresh IV
+    private final Mac mac;        // HMAC-SHA1 under the session key, or HMAC-SHA256 in cbc-etm mode; null in gcm mode
+    private final boolean etm;    // the MAC covers the ciphertext
+    private final byte[] iv;      // scratch IV
+    private volatile ForkJoinPool decryptPool;  // pool for large CBC records, null to decrypt them in one pass
+
+
+
+    /**
+     * Constructor, sets up the primitives for the given key and record mode.
+     * @param key the AES session key
+     * @param mode RECORDS_CBC_HMAC, RECORDS_CBC_ETM or RECORDS_GCM
+     * @throw IllegalStateException if the JDK does not provide the primitives
+     */
+    public CryptoSession (SecretKeySpec key, String mode)
+    {
+	this.key = key;
+	this.mode = mode;
+	etm = mode.equals(CryptoUtilities.RECORDS_CBC_ETM);
+	try {
+	    if (mode.equals(CryptoUtilities.RECORDS_GCM)) {
+		cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		mac = null;
+		iv = new byte[CryptoUtilities.GCM_IV_LEN];
+	    }
+	    else {
+		cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		mac = Mac.getInstance(etm ? "HmacSHA256" : "HmacSHA1");
+		mac.init(etm ? etm_mac_key(key) : key);
+		iv = new byte[16];
+	    }
+	}
+	catch (GeneralSecurityException e) {
+	    throw new IllegalStateException("AES record mode " + mode + " is not available", e);
+	}
+    }
+
+
+
+    /**
+     * Derives the cbc-etm MAC key from the session key, so that AES and HMAC do
+     * not share a key:  SHA-256 of a label and the session key.
+     */
+    private static SecretKeySpec etm_mac_key (SecretKeySpec key) throws GeneralSecurityException
+    {
+	MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+	sha256.update(ETM_MAC_LABEL);
+	sha256.update(key.getEncoded());
+
+	return new SecretKeySpec(sha256.digest(), "HmacSHA256");
+    }
+
+
+
+    /**
+     * Record mode of the session.
+     */
+    public String get_mode ()
+    {
+	return mode;
+    }
+
+
+
+    /**
+     * Enables or disables parallel decryption of large cbc-hmac and cbc-etm
+     * records.  When enabled, records of at least PARALLEL_CBC_MIN bytes are decrypted in
+     * segments on a pool shared by all sessions.  The result is the same as
+     * decrypting in one pass.
+     */
+    public void setParallelCBC (boolean parallel)
+    {
+	decryptPool = parallel ? CBC_POOL : null;
+    }
+
+
+
+    /**
+     * Enables parallel decryption of large CBC records on the given pool, or
+     * disables it if the pool is null.  Used to measure how decryption scales.
+     */
+    void setParallelCBC (ForkJoinPool pool)
+    {
+	decryptPool = pool;
+    }
+
+
+
+    /**
+     * Encrypts and authenticates a message.
+     * @param message the message (in bytes)
+     * @return the protected record
+     */
+    public byte[] seal (byte[] message)
+    {
+	try {
+	    if (mac == null)
+		return sealGCM(message);
+	    if (etm)
+		return sealETM(message);
+	    return sealCBC(message);
+	}
+	catch (GeneralSecurityException e) {
+	    // cannot happen with the key and parameters set up here
+	    throw new IllegalStateException(e);
+	}
+    }
+
+
+
+    /**
+     * Decrypts a record protected by seal() and checks its integrity.
+     * @param record the protected record
+     * @return the message, or null if the record fails its integrity check
+     */
+    public byte[] open (byte[] record)
+    {
+	if (mac == null)
+	    return openGCM(record);
+	if (etm)
+	    return openETM(record);
+	return openCBC(record);
+    }
+
+
+
+    /**
+     * AES-GCM in one pass, straight into the record behind the IV.  HotSpot
+     * only uses its AES and GHASH intrinsics once the cipher's per-call code is
+     * compiled, which short calls reach after far fewer bytes than long ones,
+     * so the message is fed in slices.
+     */
+    private byte[] sealGCM (byte[] message) throws GeneralSecurityException
+    {
+	IV_RANDOM.nextBytes(iv);
+	cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(8 * CryptoUtilities.GCM_TAG_LEN, iv));
+
+	byte[] record = new byte[iv.length + cipher.getOutputSize(message.length)];
+	System.arraycopy(iv, 0, record, 0, iv.length);
+	int off = 0, pos = iv.length;
+	for (; message.length - off > CryptoUtilities.GCM_SLICE; off += CryptoUtilities.GCM_SLICE)
+	    pos += cipher.update(message, off, CryptoUtilities.GCM_SLICE, record, pos);
+	cipher.doFinal(message, off, message.length - off, record, pos);
+
+	return record;
+    }
+
+
+
+    private byte[] openGCM (byte[] record)
+    {
+	if (record.length < CryptoUtilities.GCM_IV_LEN + CryptoUtilities.GCM_TAG_LEN)
+	    return null;
+
+	try {
+	    cipher.init(Cipher.DECRYPT_MODE, key,
+			new GCMParameterSpec(8 * CryptoUtilities.GCM_TAG_LEN, record, 0, CryptoUtilities.GCM_IV_LEN));
+	    return cipher.doFinal(record, CryptoUtilities.GCM_IV_LEN, record.length - CryptoUtilities.GCM_IV_LEN);
+	}
+	catch (GeneralSecurityException e) {
+	    // bad tag:  tampered with, or encrypted under another key
+	    return null;
+	}
+    }
+
+
+
+    /**
+     * HMAC-SHA1 then AES-CBC, encrypting the message and its digest straight
+     * into the record without first joining them, then appending the IV in the
+     * encoding AlgorithmParameters uses.
+     */
+    private byte[] sealCBC (byte[] message) throws GeneralSecurityException
+    {
+	byte[] digest = mac.doFinal(message);
+
+	IV_RANDOM.nextBytes(iv);
+	cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+
+	byte[] record = new byte[cipher.getOutputSize(message.length + digest.length) + CryptoUtilities.AES_PARAM_LEN];
+	int pos = cipher.update(message, 0, message.length, record, 0);
+	pos += cipher.doFinal(digest, 0, digest.length, record, pos);
+
+	System.arraycopy(CBC_PARAM_HEADER, 0, record, pos, CBC_PARAM_HEADER.length);
+	System.arraycopy(iv, 0, record, pos + CBC_PARAM_HEADER.length, iv.length);
+
+	return record;
+    }
+
+
+
+    private byte[] openCBC (byte[] record)
+    {
+	int len = record.length - CryptoUtilities.AES_PARAM_LEN;
+	if (len < 16 || record[len] != CBC_PARAM_HEADER[0] || record[len+1] != CBC_PARAM_HEADER[1])
+	    return null;
+
+	ForkJoinPool pool = decryptPool;
+	if (pool != null && pool.getParallelism() > 1 && len >= CryptoUtilities.PARALLEL_CBC_MIN)
+	    return openCBCParallel(record, len, pool);
+
+	byte[] hashed;
+	try {
+	    cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(record, len + CBC_PARAM_HEADER.length, 16));
+	    hashed = cipher.doFinal(record, 0, len);
+	}
+	catch (GeneralSecurityException e) {
+	    // bad padding:  tampered with, or encrypted under another key
+	    return null;
+	}
+
+	int n = hashed.length - CryptoUtilities.HMAC_SHA1_LEN;
+	if (n < 0)
+	    return null;
+	mac.update(hashed, 0, n);
+	byte[] digest = mac.doFinal();
+	byte[] sent = Arrays.copyOfRange(hashed, n, hashed.length);
+	if (!MessageDigest.isEqual(digest, sent))
+	    return null;
+
+	return Arrays.copyOf(hashed, n);
+    }
+
+
+
+    /**
+     * openCBC for large records, on several cores.  Each CBC plaintext block
+     * depends only on its own ciphertext block and the one before it, so the
+     * ciphertext is cut into segments that are decrypted without padding in the
+     * pool, each starting from the last ciphertext block of the segment before.
+     * This thread feeds the segments to the MAC in order as they complete, then
+     * checks the padding and digest as the one-pass decryption does.
+     */
+    private byte[] openCBCParallel (final byte[] record, int len, ForkJoinPool pool)
+    {
+	if (len % 16 != 0)
+	    return null;
+
+	byte[] hashed = new byte[len];
+	List<ForkJoinTask<?>> segments = decryptSegments(record, 0, len, len + CBC_PARAM_HEADER.length, hashed, pool);
+
+	// the message ends at least one padding block and a digest before the end
+	int safe = len - 16 - CryptoUtilities.HMAC_SHA1_LEN;
+	int macked = 0;
+	try {
+	    for (int i = 0; i < segments.size(); i++) {
+		segments.get(i).join();
+		int end = Math.min((i+1) * CryptoUtilities.PARALLEL_CBC_SEGMENT, safe);
+		if (end > macked) {
+		    mac.update(hashed, macked, end - macked);
+		    macked = end;
+		}
+	    }
+
+	    int pad = padding(hashed, len);
+	    int n = len - pad - CryptoUtilities.HMAC_SHA1_LEN;
+	    if (pad < 0 || n < 0)
+		return null;
+
+	    mac.update(hashed, macked, n - macked);
+	    byte[] digest = mac.doFinal();
+	    byte[] sent = Arrays.copyOfRange(hashed, n, n + CryptoUtilities.HMAC_SHA1_LEN);
+	    if (!MessageDigest.isEqual(digest, sent))
+		return null;
+
+	    return Arrays.copyOf(hashed, n);
+	}
+	finally {
+	    // leave the MAC ready for the next record when returning early
+	    mac.reset();
+	}
+    }
+
+
+
+    /**
+     * Starts decrypting the CBC ciphertext in the record from index start up to
+     * index end into out, without removing the padding, in segments on the given
+     * pool.  The first segment starts from the IV at ivOff and every other one
+     * from the ciphertext block before it.
+     * @return the segments, in order
+     */
+    private List<ForkJoinTask<?>> decryptSegments (final byte[] record, final int start, int end, int ivOff,
+						   final byte[] out, ForkJoinPool pool)
+    {
+	List<ForkJoinTask<?>> segments = new ArrayList<ForkJoinTask<?>>();
+	for (int off = start; off < end; off += CryptoUtilities.PARALLEL_CBC_SEGMENT) {
+	    final int from = off;
+	    final int to = Math.min(off + CryptoUtilities.PARALLEL_CBC_SEGMENT, end);
+	    final int segmentIV = off == start ? ivOff : off - 16;
+	    segments.add(pool.submit(new Runnable() {
+		    public void run() {
+			decryptSegment(record, from, to, segmentIV, out, from - start);
+		    }
+		}));
+	}
+
+	return segments;
+    }
+
+
+
+    /**
+     * Decrypts the ciphertext from index from up to index to into out at outOff,
+     * starting from the IV or ciphertext block at ivOff.
+     */
+    private void decryptSegment (byte[] record, int from, int to, int ivOff, byte[] out, int outOff)
+    {
+	try {
+	    Cipher cipher = CBC_SEGMENT_CIPHER.get();
+	    cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(record, ivOff, 16));
+	    cipher.doFinal(record, from, to - from, out, outOff);
+	}
+	catch (GeneralSecurityException e) {
+	    // cannot happen:  segments are whole blocks and need no padding
+	    throw new IllegalStateException(e);
+	}
+    }
+
+
+
+    /**
+     * Length of the PKCS#5 padding that ends the first len bytes of a decryption:
+     * 1 to 16 bytes, each holding the padding length.
+     * @return the padding length, or -1 if the padding is malformed
+     */
+    private static int padding (byte[] padded, int len)
+    {
+	int pad = len > 0 ? padded[len-1] & 0xff : 0;
+	if (pad < 1 || pad > 16 || pad > len)
+	    return -1;
+	for (int i = len - pad; i < len - 1; i++)
+	    if (padded[i] != padded[len-1])
+		return -1;
+
+	return pad;
+    }
+
+
+
+    /**
+     * AES-CBC straight into the record behind the IV, then HMAC-SHA256 over
+     * the IV and ciphertext.  Only the last partial block goes through doFinal,
+     * which copies its input to add the padding.
+     */
+    private byte[] sealETM (byte[] message) throws GeneralSecurityException
+    {
+	IV_RANDOM.nextBytes(iv);
+	cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+
+	byte[] record = new byte[iv.length + cipher.getOutputSize(message.length) + CryptoUtilities.ETM_MAC_LEN];
+	System.arraycopy(iv, 0, record, 0, iv.length);
+	int whole = message.length & ~15;
+	int pos = iv.length + cipher.update(message, 0, whole, record, iv.length);
+	pos += cipher.doFinal(message, whole, message.length - whole, record, pos);
+	mac.update(record, 0, pos);
+	mac.doFinal(record, pos);
+
+	return record;
+    }
+
+
+
+    private byte[] openETM (byte[] record)
+    {
+	if (record.length >= CryptoUtilities.ETM_MAC_LEN)
+	    mac.update(record, 0, record.length - CryptoUtilities.ETM_MAC_LEN);
+	return verifyAndDecryptETM(record);
+    }
+
+
+
+    /**
+     * Finishes opening a cbc-etm record once the MAC has been fed everything
+     * before the tag:  checks the tag, and decrypts only if it matches.
+     */
+    private byte[] verifyAndDecryptETM (byte[] record)
+    {
+	int len = record.length - CryptoUtilities.ETM_MAC_LEN;
+	byte[] tag = mac.doFinal();
+	if (len < 0 || !MessageDigest.isEqual(tag, Arrays.copyOfRange(record, len, record.length)))
+	    return null;
+
+	// authentic records hold an IV and at least one whole block
+	if (len < 32 || len % 16 != 0)
+	    return null;
+
+	ForkJoinPool pool = decryptPool;
+	if (pool != null && pool.getParallelism() > 1 && len >= CryptoUtilities.PARALLEL_CBC_MIN) {
+	    byte[] padded = new byte[len - 16];
+	    for (ForkJoinTask<?> segment : decryptSegments(record, 16, len, 0, padded, pool))
+		segment.join();
+	    int pad = padding(padded, padded.length);
+	    return pad < 0 ? null : Arrays.copyOf(padded, padded.length - pad);
+	}
+
+	try {
+	    cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(record, 0, 16));
+	    return cipher.doFinal(record, 16, len - 16);
+	}
+	catch (GeneralSecurityException e) {
+	    // bad padding under a valid tag:  the sender is broken
+	    return null;
+	}
+    }
+
+
+
+    /**
+     * Protects the given message with seal() and writes it to the supplied stream.
+     *
+     * @param message  the message (in bytes)
+     * @param out  the output stream
+     * @throws IOException
+     */
+    public void sealAndSend (byte[] message, DataOutputStream out) throws IOException
+    {
+	CryptoUtilities.send(seal(message),out);
+    }
+
+
+
+    /**
+     * Protects the given message with seal() and writes it to the supplied stream
+     * without flushing.
+     *
+     * @param message  the message (in bytes)
+     * @param out  the output stream
+     * @throws IOException
+     */
+    public void sealAndQueue (byte[] message, DataOutputStream out) throws IOException
+    {
+	CryptoUtilities.queue(seal(message),out);
+    }
+
+
+
+    /**
+     * Receives a record protected by seal() and opens it.  In cbc-etm mode the
+     * MAC is computed as the record arrives and checked before any decryption,
+     * so a forged record costs no more than reading it.
+     *
+     * @param in   the input stream
+     * @throws IOException if the record cannot be read
+     * @return the message, or null if the record fails its integrity check
+     */
+    public byte[] receiveRecord (DataInputStream in) throws IOException
+    {
+	if (!etm)
+	    return open(CryptoUtilities.receive(in));
+
+	// read the record, feeding the IV and ciphertext to the MAC as they arrive
+	int size = in.readInt();
+	byte[] record = new byte[size];
+	int authenticated = Math.max(0, size - CryptoUtilities.ETM_MAC_LEN);
+	int total = 0;
+	try {
+	    while (total < size) {
+		int i = in.read(record, total, size - total);
+		if (i < 0)
+		    throw new EOFException("Connection closed after " + total + " of " + size + " bytes");
+		if (total < authenticated)
+		    mac.update(record, total, Math.min(total + i, authenticated) - total);
+		total += i;
+	    }
+	}
+	catch (IOException e) {
+	    mac.reset();
+	    throw e;
+	}
+
+	return verifyAndDecryptETM(record);
+    }
+
+
+
+    /**
+     * Receives a record protected by seal() and returns its message.
+     *
+     * @param in   the input stream
+     * @throws IOException if the record cannot be read or fails its integrity check
+     * @return the message
+     */
+    public byte[] receiveAndOpen (DataInputStream in) throws IOException
+    {
+	byte[] message = receiveRecord(in);
+	if (message == null)
+	    throw new IOException("Record failed its integrity check");
+
+	return message;
+    }
+
+
+
+    /**
+     * Reads the given stream to the end and sends it as a sequence of CHUNK_SIZE
+     * records, each protected by seal(), followed by a trailer record holding the
+     * total number of bytes sent.  Every record starts with its sequence number
+     * and a flag marking the trailer so that the receiver can detect dropped,
+     * reordered or truncated chunks.
+     *
+     * @param source  the stream to be sent
+     * @param out  the output stream
+     * @throws IOException
+     * @return number of bytes sent
+     */
+    public long encryptAndSendStream (InputStream source, DataOutputStream out) throws IOException
+    {
+	byte[] chunk = new byte[CryptoUtilities.CHUNK_HEADER_LEN + CryptoUtilities.CHUNK_SIZE];
+	long total = 0;
+	int seq = 0;
+
+	// send data chunks until the end of the stream
+	int len;
+	while ((len = readFully(source, chunk, CryptoUtilities.CHUNK_HEADER_LEN)) > 0) {
+	    chunk_header(chunk, seq++, false);
+	    sealAndSend(len == CryptoUtilities.CHUNK_SIZE ? chunk
+			: Arrays.copyOf(chunk, CryptoUtilities.CHUNK_HEADER_LEN + len), out);
+	    total += len;
+	}
+
+	// send the trailer with the total length
+	byte[] trailer = new byte[CryptoUtilities.CHUNK_HEADER_LEN + 8];
+	chunk_header(trailer, seq, true);
+	for (int i = 0; i < 8; i++)
+	    trailer[CryptoUtilities.CHUNK_HEADER_LEN + i] = (byte) (total >>> (56 - 8*i));
+	sealAndSend(trailer, out);
+
+	return total;
+    }
+
+
+
+    /**
+     * Receives a sequence of chunk records sent by encryptAndSendStream, checking
+     * each chunk's integrity and sequence number and writing its data to the given
+     * stream as soon as it has been verified.
+     *
+     * @param in   the input stream
+     * @param sink  the stream the received data is written to
+     * @param size  the expected total number of bytes
+     * @throws IOException
+     * @return true if every chunk and the trailer verified and size bytes were received
+     */
+    public boolean receiveAndDecryptStream (DataInputStream in, OutputStream sink, long size) throws IOException
+    {
+	ChunkStream chunks = new ChunkStream(sink, size);
+	while (chunks.next(receiveRecord(in)))
+	    ;
+
+	return chunks.verified();
+    }
+
+
+
+    /**
+     * This class checks a stream of chunks sent by encryptAndSendStream one
+     * record at a time, for receivers that do not read from a blocking stream.
+     * Each chunk's data is written to the sink as soon as its sequence number has
+     * been checked.
+     */
+    public class ChunkStream
+    {
+	private final OutputStream sink;
+	private final long size;  // expected total number of bytes
+	private long total = 0;   // bytes received so far
+	private int seq = 0;      // sequence number of the next chunk
+	private boolean verified = false;
+
+
+
+	/**
+	 * Constructor.
+	 * @param sink  the stream the received data is written to
+	 * @param size  the expected total number of bytes
+	 */
+	public ChunkStream (OutputStream sink, long size)
+	{
+	    this.sink = sink;
+	    this.size = size;
+	}
+
+
+
+	/**
+	 * Checks the next chunk of the stream and writes its data to the sink.
+	 * @param chunk the chunk as returned by open(), or null if it failed its integrity check
+	 * @throws IOException if the data cannot be written
+	 * @return true if more chunks are expected, false once the stream has ended or failed
+	 */
+	public boolean next (byte[] chunk) throws IOException
+	{
+	    if (chunk == null || chunk.length < CryptoUtilities.CHUNK_HEADER_LEN || chunk_seq(chunk) != seq++)
+		return false;
+
+	    int len = chunk.length - CryptoUtilities.CHUNK_HEADER_LEN;
+	    if (chunk[4] != 0) {
+		// trailer:  the sender's total must match what was received
+		if (len != 8)
+		    return false;
+		long sent = 0;
+		for (int i = 0; i < 8; i++)
+		    sent = (sent << 8) | (chunk[CryptoUtilities.CHUNK_HEADER_LEN + i] & 0xff);
+		verified = sent == total && total == size;
+		return false;
+	    }
+
+	    total += len;
+	    if (total > size)
+		return false;
+	    sink.write(chunk, CryptoUtilities.CHUNK_HEADER_LEN, len);
+	    return true;
+	}
+
+
+
+	/**
+	 * Whether every chunk and the trailer verified and size bytes were received.
+	 */
+	public boolean verified ()
+	{
+	    return verified;
+	}
+    }
+
+
+
+    /**
+     * Writes a chunk header:  sequence number, then the trailer flag.
+     */
+    private static void chunk_header (byte[] chunk, int seq, boolean last)
+    {
+	chunk[0] = (byte) (seq >>> 24);
+	chunk[1] = (byte) (seq >>> 16);
+	chunk[2] = (byte) (seq >>> 8);
+	chunk[3] = (byte) seq;
+	chunk[4] = (byte) (last ? 1 : 0);
+    }
+
+
+
+    /**
+     * Extracts the sequence number from a chunk record.
+     */
+    private static int chunk_seq (byte[] chunk)
+    {
+	return ((chunk[0] & 0xff) << 24) | ((chunk[1] & 0xff) << 16)
+	    | ((chunk[2] & 0xff) << 8) | (chunk[3] & 0xff);
+    }
+
+
+
+    /**
+     * Fills the buffer from the given offset on, stopping early only at the end
+     * of the stream.
+     *
+     * @return number of bytes read (0 at the end of the stream)
+     */
+    private static int readFully (InputStream source, byte[] buf, int off) throws IOException
+    {
+	int total = 0;
+	while (off + total < buf.length) {
+	    int i = source.read(buf, off + total, buf.length - off - total);
+	    if (i < 0)
+		break;
+	    total += i;
+	}
+
+	return total;
+    }
+}
@@ -0,0 +1,234 @@
+import java.io.*;
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * This class holds the public parameters of a Diffie-Hellman group:  a safe
+ * prime p = 2q + 1 and a generator g mod p.  A group is generated or loaded
+ * once and shared by every connection, so a handshake only costs two modular
+ * exponentiations, and powers of g use a fixed-base table.  The table costs
+ * many exponentiations to build, so it is only built once a power of g is
+ * first needed;  a group used for a single exponentiation should use modPow.
+ * Secret exponents are only as long as the security level of p requires,
+ * which makes each exponentiation several times cheaper than with exponents
+ * as long as p.
+ *
+ * @author Pujan Bhatta
+ * @version 1.0
+ */
+public class DHGroup
+{
+    private final BigInteger p;  // safe prime modulus
+    private final BigInteger g;  // generator mod p
+    private final String name;   // name of a standard group, or null
+    private final int expBits;   // size of secret exponents
+    private volatile FixedBaseExp gTable;  // precomputed powers of g, built on first use
+
+    // sizes of p and of the secret exponents for their security level, as in RFC 7919
+    private static final int[] GROUP_BITS    = { 1024, 2048, 3072, 4096, 6144, 8192 };
+    private static final int[] EXPONENT_BITS = {  160,  225,  275,  325,  375,  400 };
+
+    // certainty of the primality tests on a loaded group
+    private static final int CERTAINTY = 64;
+
+
+
+    /**
+     * Constructor for a known group.
+     * @param p safe prime modulus
+     * @param g generator mod p
+     */
+    public DHGroup (BigInteger p, BigInteger g)
+    {
+	this(null, p, g);
+    }
+
+
+
+    /**
+     * Constructor for a named group.
+     * @param name name of the group, or null
+     * @param p safe prime modulus
+     * @param g generator mod p
+     */
+    public DHGroup (String name, BigInteger p, BigInteger g)
+    {
+	this.name = name;
+	this.p = p;
+	this.g = g;
+	this.expBits = exponentBits(p.bitLength());
+    }
+
+
+
+    /**
+     * Generates a new group:  searches for a safe prime p = 2q + 1 with q a
+     * prime of the given size, then for the smallest primitive root g.
+     * @param qbits bit length of q
+     * @param rnd source of randomness for the prime search
+     * @return the new group
+     */
+    public static DHGroup generate (int qbits, Random rnd)
+    {
+	return fromSafePrime(SafePrimeGenerator.generate(qbits + 1, rnd));
+    }
+
+
+
+    /**
+     * Loads a named group from a parameter file.  Each group in the file starts
+     * with a line "name generator" followed by p in hexadecimal on indented
+     * lines, and lines starting with # are comments.
+     * @param filename name of the parameter file
+     * @param name name of the group
+     * @throws IOException if the file cannot be read, does not contain the group
+     *   or p is not a safe prime
+     * @return the group
+     */
+    public static DHGroup load (String filename, String name) throws IOException
+    {
+	BigInteger g = null;
+	StringBuilder hex = null;
+
+	BufferedReader in = new BufferedReader(new FileReader(filename));
+	try {
+	    String line;
+	    while ((line = in.readLine()) != null) {
+		if (line.trim().length() == 0 || line.startsWith("#"))
+		    continue;
+		if (!Character.isWhitespace(line.charAt(0))) {
+		    // header line, the group ends where the next one starts
+		    if (hex != null)
+			break;
+		    String[] fields = line.trim().split("\\s+");
+		    if (fields[0].equals(name) && fields.length == 2) {
+			g = new BigInteger(fields[1]);
+			hex = new StringBuilder();
+		    }
+		}
+		else if (hex != null) {
+		    hex.append(line.replaceAll("\\s", ""));
+		}
+	    }
+	}
+	catch (NumberFormatException e) {
+	    throw new IOException("Invalid group " + name + " in " + filename);
+	}
+	finally {
+	    in.close();
+	}
+
+	if (hex == null)
+	    throw new IOException("No group " + name + " in " + filename);
+
+	BigInteger p;
+	try {
+	    p = new BigInteger(hex.toString(), 16);
+	}
+	catch (NumberFormatException e) {
+	    throw new IOException("Invalid group " + name + " in " + filename);
+	}
+
+	// the file is trusted no further than it is checked
+	BigInteger q = p.subtract(BigInteger.ONE).shiftRight(1);
+	if (!p.isProbablePrime(CERTAINTY) || !q.isProbablePrime(CERTAINTY))
+	    throw new IOException("Group " + name + " in " + filename + " is not a safe prime group");
+	if (g.compareTo(BigInteger.ONE) <= 0 || g.compareTo(p.subtract(BigInteger.ONE)) >= 0)
+	    throw new IOException("Group " + name + " in " + filename + " has an invalid generator");
+
+	return new DHGroup(name, p, g);
+    }
+
+
+
+    /**
+     * Size of the secret exponents for a modulus of the given size:  twice the
+     * security level of the largest standard size not above it, or the size of
+     * p itself below 1024 bits.
+     * @param pbits bit length of p
+     * @return exponent size in bits
+     */
+    public static int exponentBits (int pbits)
+    {
+	int bits = pbits - 1;
+	for (int i = 0; i < GROUP_BITS.length; i++)
+	    if (pbits >= GROUP_BITS[i])
+		bits = EXPONENT_BITS[i];
+	return bits;
+    }
+
+
+
+    /**
+     * Builds the group for a given safe prime by searching for the smallest
+     * primitive root g.
+     * @param p safe prime modulus
+     * @return the new group
+     */
+    public static DHGroup fromSafePrime (BigInteger p)
+    {
+	BigInteger q = p.subtract(BigInteger.ONE).shiftRight(1);
+
+	// the group has order 2q, so g generates it iff g^2 != 1 and g^q != 1
+	BigInteger g = BigInteger.valueOf(2);
+	while (g.modPow(q, p).equals(BigInteger.ONE))
+	    g = g.add(BigInteger.ONE);
+
+	return new DHGroup(p, g);
+    }
+
+
+
+    /**
+     * Computes g^x mod p using the fixed-base table, building the table on the
+     * first call.
+     * @param x exponent
+     * @return g^x mod p
+     */
+    public BigInteger pow_g (BigInteger x)
+    {
+	FixedBaseExp table = gTable;
+	if (table == null) {
+	    synchronized (this) {
+		table = gTable;
+		if (table == null)
+		    gTable = table = new FixedBaseExp(g, p, expBits, FixedBaseExp.WINDOW);
+	    }
+	}
+	return table.pow(x);
+    }
+
+
+
+    /**
+     * Draws a random secret exponent for this group.
+     * @param rnd source of randomness
+     * @return exponent x of exactly get_exponent_bits() bits
+     */
+    public BigInteger random_exponent (Random rnd)
+    {
+	return new BigInteger(expBits, rnd).setBit(expBits - 1);
+    }
+
+
+
+    public BigInteger get_p ()
+    {
+	return p;
+    }
+
+    public BigInteger get_g ()
+    {
+	return g;
+    }
+
+    public String get_name ()
+    {
+	return name;
+    }
+
+    public int get_exponent_bits ()
+    {
+	return expBits;
+    }
+}
@@ -0,0 +1,180 @@
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps a bounded pool of precomputed Diffie-Hellman key pairs
+ * (x, g^x mod p) for the server's current group.  A low priority background
+ * thread refills the pool whenever a pair is taken, so a handshake only has to
+ * compute the shared secret.  Every pair is handed out exactly once, and the
+ * pool is emptied when the server installs a new group, see setGroup.
+ *
+ * @author Pujan Bhatta
+ * @version 1.0
+ */
+public class EphemeralKeyPool
+{
+    /**
+     * A secret exponent x and the public value g^x mod p of one group.
+     */
+    public static class DHKeyPair
+    {
+	public final DHGroup group;
+	public final BigInteger x;
+	public final BigInteger gx;
+
+	DHKeyPair (DHGroup group, BigInteger x, BigInteger gx)
+	{
+	    this.group = group;
+	    this.x = x;
+	    this.gx = gx;
+	}
+    }
+
+    private final BlockingQueue<DHKeyPair> pairs;  // ready pairs, all for the current group
+    private final Thread producer;  // background generator thread
+    private final SecureRandom rnd;
+    private volatile DHGroup group;  // group the pool is filled for
+    private final AtomicLong misses = new AtomicLong();  // pairs computed by take() because none was ready
+    private volatile boolean stopped;
+
+
+
+    /**
+     * Constructor, starts the producer thread.
+     * @param group group to generate pairs for
+     * @param capacity number of pairs to keep ready
+     */
+    public EphemeralKeyPool (DHGroup group, int capacity)
+    {
+	this.group = group;
+	pairs = new ArrayBlockingQueue<DHKeyPair>(capacity);
+	rnd = new SecureRandom();
+	stopped = false;
+
+	producer = new Thread("Ephemeral key producer") {
+		public void run () {
+		    produce();
+		}
+	    };
+	producer.setDaemon(true);
+	producer.setPriority(Thread.MIN_PRIORITY);
+	producer.start();
+    }
+
+
+
+    /**
+     * Switches the pool to a new group, discarding the pairs of the old one.
+     * @param fresh the new group
+     */
+    public void setGroup (DHGroup fresh)
+    {
+	group = fresh;
+	pairs.clear();
+	synchronized (this) {
+	    notifyAll();
+	}
+    }
+
+
+
+    /**
+     * Takes a key pair for the given group, computing one on the caller's thread
+     * only if none is ready.
+     * @param g group the pair must belong to
+     * @return a key pair that is not handed out again
+     */
+    public DHKeyPair take (DHGroup g)
+    {
+	DHKeyPair pair = pairs.poll();
+
+	// wake the producer to replace it
+	synchronized (this) {
+	    notifyAll();
+	}
+
+	// pairs left over from a replaced group are dropped
+	while (pair != null && pair.group != g)
+	    pair = pairs.poll();
+
+	if (pair == null) {
+	    misses.incrementAndGet();
+	    pair = generate(g, new SecureRandom());
+	}
+	return pair;
+    }
+
+
+
+    /**
+     * Number of pairs ready to be taken.
+     */
+    public int available ()
+    {
+	return pairs.size();
+    }
+
+
+
+    /**
+     * Number of pairs take() had to compute on the caller's thread because none
+     * for the requested group was ready.
+     */
+    public long misses ()
+    {
+	return misses.get();
+    }
+
+
+
+    /**
+     * Stops the producer thread.
+     */
+    public void shutdown ()
+    {
+	stopped = true;
+	producer.interrupt();
+    }
+
+
+
+    /**
+     * Computes a new key pair for the given group.
+     */
+    private static DHKeyPair generate (DHGroup g, SecureRandom rnd)
+    {
+	BigInteger x = g.random_exponent(rnd);
+	return new DHKeyPair(g, x, g.pow_g(x));
+    }
+
+
+
+    /**
+     * Producer loop:  keeps the pool full, sleeping while it is.
+     */
+    private void produce ()
+    {
+	while (!stopped) {
+	    if (pairs.remainingCapacity() == 0) {
+		try {
+		    synchronized (this) {
+			while (!stopped && pairs.remainingCapacity() == 0)
+			    wait(1000);
+		    }
+		}
+		catch (InterruptedException e) {
+		    return;
+		}
+		continue;
+	    }
+
+	    // a pair finished after a group change is dropped rather than queued
+	    DHGroup g = group;
+	    DHKeyPair pair = generate(g, rnd);
+	    if (g == group)
+		pairs.offer(pair);
+	}
+    }
+}
@@ -0,0 +1,106 @@
+import java.math.BigInteger;
+
+/**
+ * This class computes g^x mod p for a base g and modulus p that do not change,
+ * such as the generator of a Diffie-Hellman group.  The powers
+ * g^(j * 2^(w*i)) for every w-bit digit j and digit position i are computed
+ * once, so g^x costs one table lookup and one multiplication per nonzero digit
+ * of x and no squarings at all.  Products are reduced with Barrett reduction,
+ * which needs only multiplications, rather than with BigInteger.mod.
+ *
+ * @author Pujan Bhatta
+ * @version 1.0
+ */
+public class FixedBaseExp
+{
+    // bits per exponent digit, trading table size for multiplications
+    public static final int WINDOW = 6;
+
+    private final BigInteger g;        // fixed base
+    private final BigInteger p;        // modulus
+    private final BigInteger mu;       // floor(2^(2k) / p), for Barrett reduction
+    private final int k;               // bit length of p
+    private final int window;          // bits per digit
+    private final int maxBits;         // longest exponent covered by the table
+    private final BigInteger[][] table;  // table[i][j] = g^(j * 2^(window*i)) mod p
+
+
+
+    /**
+     * Constructor, builds the table.
+     * @param g base
+     * @param p odd modulus
+     * @param maxBits longest exponent to cover, longer ones fall back to modPow
+     * @param window bits per exponent digit, 1 to 8
+     */
+    public FixedBaseExp (BigInteger g, BigInteger p, int maxBits, int window)
+    {
+	if (window < 1 || window > 8)
+	    throw new IllegalArgumentException("window must be 1 to 8 bits");
+
+	this.g = g;
+	this.p = p;
+	this.k = p.bitLength();
+	this.mu = BigInteger.ONE.shiftLeft(2 * k).divide(p);
+	this.window = window;
+	this.maxBits = maxBits;
+
+	int digits = (maxBits + window - 1) / window;
+	table = new BigInteger[digits][1 << window];
+	BigInteger base = g.mod(p);
+	for (int i = 0; i < digits; i++) {
+	    table[i][0] = BigInteger.ONE;
+	    table[i][1] = base;
+	    for (int j = 2; j < (1 << window); j++)
+		table[i][j] = reduce(table[i][j-1].multiply(base));
+	    base = reduce(table[i][(1 << window) - 1].multiply(base));
+	}
+    }
+
+
+
+    /**
+     * Computes g^x mod p.
+     * @param x exponent
+     * @return g^x mod p
+     */
+    public BigInteger pow (BigInteger x)
+    {
+	if (x.signum() < 0 || x.bitLength() > maxBits)
+	    return g.modPow(x, p);
+
+	byte[] bytes = x.toByteArray();
+	int digits = (x.bitLength() + window - 1) / window;
+	int mask = (1 << window) - 1;
+	BigInteger result = null;
+
+	for (int i = 0; i < digits; i++) {
+	    // window bits starting at bit i*window, spanning at most two bytes
+	    int bit = i * window;
+	    int idx = bytes.length - 1 - (bit >> 3);
+	    int v = bytes[idx] & 0xff;
+	    if (idx > 0)
+		v |= (bytes[idx-1] & 0xff) << 8;
+	    int digit = (v >> (bit & 7)) & mask;
+
+	    if (digit != 0)
+		result = result == null ? table[i][digit] : reduce(result.multiply(table[i][digit]));
+	}
+
+	return result == null ? BigInteger.ONE : result;
+    }
+
+
+
+    /**
+     * Barrett reduction of 0 <= x < p^2.
+     */
+    private BigInteger reduce (BigInteger x)
+    {
+	BigInteger q = x.shiftRight(k - 1).multiply(mu).shiftRight(k + 1);
+	BigInteger r = x.subtract(q.multiply(p));
+	while (r.compareTo(p) >= 0)
+	    r = r.subtract(p);
+	return r;
+    }
+}
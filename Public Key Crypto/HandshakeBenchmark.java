@@ -0,0 +1,228 @@
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.*;
+import java.util.*;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Compares the cost of the key exchange modes.  Each handshake runs the
+ * computations of both the client and the server in one thread, without the
+ * network, and checks that both sides derive the same AES key.  Before
+ * measuring, an EphemeralKeyPool is switched to a new group, as the server does
+ * when it regenerates its group, and checked to refill with pairs of the new
+ * group.
+ *
+ *   dh-full  - Diffie-Hellman as originally implemented:  exponents as long as p
+ *              and a generic modPow for every exponentiation
+ *   dh       - Diffie-Hellman with short exponents and the fixed-base table
+ *   x25519   - X25519 with the JDK's XDH provider
+ *
+ * @author Pujan Bhatta
+ * @version 1.0
+ */
+public class HandshakeBenchmark
+{
+    // pairs kept by the key pool checked by checkRegeneration, and how long it may take to refill
+    private static final int CHECK_POOL_SIZE = 8;
+    private static final long CHECK_TIMEOUT = 60 * 1000L;
+
+    // results are stored here so that the JIT cannot drop the benchmarked work
+    private static volatile Object sink;
+
+
+
+    /**
+     * A benchmarked handshake, returning the two sides' keys.
+     */
+    private static abstract class Handshake
+    {
+	abstract SecretKeySpec[] run() throws Exception;
+    }
+
+
+
+    /**
+     * Runs handshakes for the given time after a warm up of the same length and
+     * prints handshakes per second.
+     */
+    private static void measure (String name, Handshake h, long millis) throws Exception
+    {
+	long end = System.currentTimeMillis() + millis;
+	while (System.currentTimeMillis() < end)
+	    sink = h.run();
+
+	long count = 0;
+	long start = System.nanoTime();
+	end = System.currentTimeMillis() + millis;
+	while (System.currentTimeMillis() < end) {
+	    SecretKeySpec[] keys = h.run();
+	    if (!keys[0].equals(keys[1]))
+		throw new IllegalStateException(name + ": client and server keys differ");
+	    count++;
+	}
+	double seconds = (System.nanoTime() - start) / 1e9;
+
+	System.out.printf("%-24s  %12.1f  %12.1f%n", name, count / seconds, seconds * 1e6 / count);
+    }
+
+
+
+    /**
+     * Checks that a key pool switched from one group to another refills with
+     * pairs of the new group, and that taking them afterwards needs no pair
+     * computed on the handshake path.
+     */
+    private static void checkRegeneration (DHGroup old, DHGroup fresh) throws InterruptedException
+    {
+	EphemeralKeyPool pool = new EphemeralKeyPool(old, CHECK_POOL_SIZE);
+	try {
+	    waitFull(pool);
+	    pool.setGroup(fresh);
+	    waitFull(pool);
+
+	    // half the pool, so that one pair of the old group finished during the switch does not matter
+	    long misses = pool.misses();
+	    for (int i = 0; i < CHECK_POOL_SIZE / 2; i++) {
+		EphemeralKeyPool.DHKeyPair pair = pool.take(fresh);
+		if (pair.group != fresh || !fresh.get_g().modPow(pair.x, fresh.get_p()).equals(pair.gx))
+		    throw new IllegalStateException("key pair taken after regeneration is not for the new group");
+	    }
+	    if (pool.misses() != misses)
+		throw new IllegalStateException("key pool did not refill for the new group");
+	}
+	finally {
+	    pool.shutdown();
+	}
+    }
+
+
+
+    /**
+     * Waits for the key pool to fill up.
+     */
+    private static void waitFull (EphemeralKeyPool pool) throws InterruptedException
+    {
+	long end = System.currentTimeMillis() + CHECK_TIMEOUT;
+	while (pool.available() < CHECK_POOL_SIZE) {
+	    if (System.currentTimeMillis() > end)
+		throw new IllegalStateException("key pool did not fill up");
+	    Thread.sleep(10);
+	}
+    }
+
+
+
+    /**
+     * Diffie-Hellman handshake as originally implemented.
+     */
+    private static Handshake dhFull (final DHGroup group, final Random rnd)
+    {
+	return new Handshake() {
+	    SecretKeySpec[] run() {
+		BigInteger p = group.get_p(), g = group.get_g();
+		int bits = p.subtract(BigInteger.valueOf(2)).bitLength();
+		BigInteger a = new BigInteger(bits, rnd), b = new BigInteger(bits, rnd);
+		BigInteger ga = g.modPow(a, p), gb = g.modPow(b, p);
+		return new SecretKeySpec[] { CryptoUtilities.key_from_seed(gb.modPow(a, p).toByteArray()),
+					     CryptoUtilities.key_from_seed(ga.modPow(b, p).toByteArray()) };
+	    }
+	};
+    }
+
+
+
+    /**
+     * Diffie-Hellman handshake as in Client.getKey and ServerThread.getKey.
+     */
+    private static Handshake dh (final DHGroup group, final Random rnd)
+    {
+	return new Handshake() {
+	    SecretKeySpec[] run() {
+		BigInteger p = group.get_p();
+		BigInteger a = group.random_exponent(rnd), b = group.random_exponent(rnd);
+		BigInteger ga = group.pow_g(a), gb = group.pow_g(b);
+		return new SecretKeySpec[] { CryptoUtilities.key_from_seed(gb.modPow(a, p).toByteArray()),
+					     CryptoUtilities.key_from_seed(ga.modPow(b, p).toByteArray()) };
+	    }
+	};
+    }
+
+
+
+    /**
+     * X25519 handshake, including the encoding and decoding of the public keys.
+     */
+    private static Handshake x25519 ()
+    {
+	return new Handshake() {
+	    SecretKeySpec[] run() throws GeneralSecurityException {
+		KeyPair client = X25519Exchange.generateKeyPair();
+		KeyPair server = X25519Exchange.generateKeyPair();
+		return new SecretKeySpec[] { X25519Exchange.agree(client.getPrivate(), X25519Exchange.encode(server.getPublic())),
+					     X25519Exchange.agree(server.getPrivate(), X25519Exchange.encode(client.getPublic())) };
+	    }
+	};
+    }
+
+
+
+    /**
+     * Outputs usage instructions
+     */
+    public static void printUsage() {
+	System.out.println ("Usage: java HandshakeBenchmark [seconds] [groupfile filename] [group name ...]");
+	System.out.println (" - seconds is the warm up and measurement time of each mode (default 5)");
+	System.out.println (" - groupfile is the parameter file holding the standard groups (default dhgroups.txt)");
+	System.out.println (" - group adds Diffie-Hellman over a standard group (default: a generated "
+			    + (CryptoUtilities.PRIME_BIT_SIZE + 1) + "-bit group only)");
+    }
+
+
+
+    /**
+     * Main method
+     * @param args optional time per mode, parameter file and group names
+     */
+    public static void main (String [] args) throws Exception
+    {
+	int seconds = 5;
+	String groupFile = "dhgroups.txt";
+	List<String> names = new ArrayList<String>();
+	for (int i = 0; i < args.length; i++) {
+	    if (args[i].compareTo("groupfile") == 0 && i+1 < args.length)
+		groupFile = args[++i];
+	    else if (args[i].compareTo("group") == 0 && i+1 < args.length)
+		names.add(args[++i]);
+	    else if (args[i].matches("[0-9]+"))
+		seconds = Integer.parseInt(args[i]);
+	    else {
+		printUsage();
+		return;
+	    }
+	}
+
+	SecureRandom rnd = new SecureRandom();
+	List<DHGroup> groups = new ArrayList<DHGroup>();
+	groups.add(DHGroup.generate(CryptoUtilities.PRIME_BIT_SIZE, rnd));
+	try {
+	    for (String name : names)
+		groups.add(DHGroup.load(groupFile, name));
+	}
+	catch (IOException e) {
+	    System.out.println ("Error:  " + e.getMessage());
+	    return;
+	}
+
+	checkRegeneration(groups.get(0), groups.size() > 1 ? groups.get(1) : DHGroup.generate(CryptoUtilities.PRIME_BIT_SIZE, rnd));
+
+	long millis = seconds * 1000L;
+	System.out.println("Key exchange, client and server on one thread, " + seconds + " s warm up and measurement each");
+	System.out.println("mode                      handshakes/s  us/handshake");
+	for (DHGroup group : groups) {
+	    String name = group.get_name() != null ? group.get_name() : "generated" + group.get_p().bitLength();
+	    measure("dh-full " + name, dhFull(group, rnd), millis);
+	    measure("dh " + name, dh(group, rnd), millis);
+	}
+	measure("x25519", x25519(), millis);
+    }
+}
@@ -0,0 +1,221 @@
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class generates safe primes p = 2q + 1 by sieving q and 2q + 1 together.
+ * A random odd starting point q0 is chosen and the candidates q0, q0 + 2, ...
+ * in a window are struck out whenever q or 2q + 1 has a small prime factor.
+ * Only the survivors get a base-2 Fermat test on q and p, and only candidates
+ * passing both get the full Miller-Rabin and Lucas tests.  Almost all
+ * candidates are therefore rejected with a few array operations instead of a
+ * modular exponentiation.  A search can also be spread over several cores,
+ * each with its own starting point, with the first hit cancelling the rest.
+ *
+ * @author Pujan Bhatta
+ * @version 1.0
+ */
+public class SafePrimeGenerator
+{
+    // candidates q0 + 2i, 0 <= i < WINDOW, sieved at once
+    private static final int WINDOW = 1 << 16;
+
+    // small odd primes used for sieving
+    private static final int[] SMALL_PRIMES = smallPrimes(1 << 16);
+
+    // certainty of the final primality tests, as used by BigInteger.probablePrime
+    private static final int PRIME_CERTAINTY = 100;
+
+    private static final BigInteger TWO = BigInteger.valueOf(2);
+
+    // threads running parallel searches
+    private static final ExecutorService SEARCH_POOL = Executors.newCachedThreadPool(new ThreadFactory() {
+	    public Thread newThread (Runnable r) {
+		Thread t = new Thread(r, "Safe prime search");
+		t.setDaemon(true);
+		return t;
+	    }
+	});
+
+
+
+    /**
+     * Generates a safe prime p = 2q + 1 of exactly the given size.
+     * @param bits bit length of p
+     * @param rnd source of randomness
+     * @throws IllegalArgumentException if bits is too small to sieve
+     * @throws CancellationException if the thread is interrupted during the search
+     * @return a safe prime
+     */
+    public static BigInteger generate (int bits, Random rnd)
+    {
+	if (bits < 32)
+	    throw new IllegalArgumentException("safe prime size must be at least 32 bits");
+
+	while (true) {
+	    if (Thread.currentThread().isInterrupted())
+		throw new CancellationException("safe prime search cancelled");
+
+	    // random odd q0 of bits-1 bits, low enough that the whole window keeps that size
+	    BigInteger q0 = new BigInteger(bits - 1, rnd).setBit(bits - 2).setBit(0);
+	    if (q0.add(BigInteger.valueOf(2L * WINDOW)).bitLength() != bits - 1)
+		continue;
+
+	    BigInteger p = searchWindow(q0);
+	    if (p != null)
+		return p;
+	}
+    }
+
+
+
+    /**
+     * Generates a safe prime by running independent searches on several threads,
+     * each with its own SecureRandom.  The first search to succeed wins and the
+     * others are cancelled.
+     * @param bits bit length of p
+     * @param threads number of concurrent searches
+     * @throws CancellationException if the calling thread is interrupted
+     * @return a safe prime
+     */
+    public static BigInteger generateParallel (final int bits, int threads)
+    {
+	List<Callable<BigInteger>> searches = new ArrayList<Callable<BigInteger>>();
+	for (int i = 0; i < threads; i++) {
+	    searches.add(new Callable<BigInteger>() {
+		    public BigInteger call() {
+			return generate(bits, new SecureRandom());
+		    }
+		});
+	}
+
+	try {
+	    return SEARCH_POOL.invokeAny(searches);
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new CancellationException("safe prime search cancelled");
+	}
+	catch (ExecutionException e) {
+	    throw new IllegalStateException("safe prime search failed", e.getCause());
+	}
+    }
+
+
+
+    /**
+     * Generates several distinct safe primes at the same time, sharing the cores
+     * between the searches.
+     * @param bits bit length of each prime
+     * @param count number of primes
+     * @throws CancellationException if the calling thread is interrupted
+     * @return the primes
+     */
+    public static BigInteger[] generateDistinct (final int bits, int count)
+    {
+	final int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / count);
+	List<Future<BigInteger>> searches = new ArrayList<Future<BigInteger>>();
+	for (int i = 0; i < count; i++) {
+	    searches.add(SEARCH_POOL.submit(new Callable<BigInteger>() {
+		    public BigInteger call() {
+			return generateParallel(bits, threads);
+		    }
+		}));
+	}
+
+	BigInteger[] primes = new BigInteger[count];
+	try {
+	    for (int i = 0; i < count; i++) {
+		primes[i] = searches.get(i).get();
+
+		// a repeat is astronomically unlikely, but would be fatal for RSA
+		for (int j = 0; j < i; j++)
+		    while (primes[i].equals(primes[j]))
+			primes[i] = generate(bits, new SecureRandom());
+	    }
+	}
+	catch (InterruptedException e) {
+	    for (Future<BigInteger> f : searches)
+		f.cancel(true);
+	    Thread.currentThread().interrupt();
+	    throw new CancellationException("safe prime search cancelled");
+	}
+	catch (ExecutionException e) {
+	    throw new IllegalStateException("safe prime search failed", e.getCause());
+	}
+
+	return primes;
+    }
+
+
+
+    /**
+     * Sieves the window starting at q0 and tests the surviving candidates.
+     * @return the first safe prime found in the window, or null if there is none
+     */
+    private static BigInteger searchWindow (BigInteger q0)
+    {
+	BitSet composite = new BitSet(WINDOW);
+
+	for (int s : SMALL_PRIMES) {
+	    int r = q0.mod(BigInteger.valueOf(s)).intValue();
+	    int half = (s + 1) / 2;  // inverse of 2 mod s
+
+	    // q = q0 + 2i is divisible by s iff i = -r/2 mod s
+	    int i = (int) ((long) (s - r) % s * half % s);
+	    for (; i < WINDOW; i += s)
+		composite.set(i);
+
+	    // 2q + 1 is divisible by s iff q = (s-1)/2 mod s
+	    i = (int) ((long) (((s - 1) / 2 - r) % s + s) % s * half % s);
+	    for (; i < WINDOW; i += s)
+		composite.set(i);
+	}
+
+	for (int i = composite.nextClearBit(0); i < WINDOW; i = composite.nextClearBit(i + 1)) {
+	    if (Thread.currentThread().isInterrupted())
+		throw new CancellationException("safe prime search cancelled");
+
+	    BigInteger q = q0.add(BigInteger.valueOf(2L * i));
+	    BigInteger p = q.shiftLeft(1).add(BigInteger.ONE);
+
+	    // cheap base-2 Fermat tests weed out almost all composites
+	    if (!TWO.modPow(q.subtract(BigInteger.ONE), q).equals(BigInteger.ONE))
+		continue;
+	    if (!TWO.modPow(p.subtract(BigInteger.ONE), p).equals(BigInteger.ONE))
+		continue;
+
+	    if (q.isProbablePrime(PRIME_CERTAINTY) && p.isProbablePrime(PRIME_CERTAINTY))
+		return p;
+	}
+
+	return null;
+    }
+
+
+
+    /**
+     * Sieve of Eratosthenes for the odd primes below the given limit.
+     */
+    private static int[] smallPrimes (int limit)
+    {
+	BitSet composite = new BitSet(limit);
+	int count = 0;
+	for (int i = 3; i < limit; i += 2) {
+	    if (!composite.get(i)) {
+		count++;
+		for (long j = (long) i * i; j < limit; j += 2 * i)
+		    composite.set((int) j);
+	    }
+	}
+
+	int[] primes = new int[count];
+	count = 0;
+	for (int i = 3; i < limit; i += 2)
+	    if (!composite.get(i))
+		primes[count++] = i;
+
+	return primes;
+    }
+}
@@ -1,14 +1,18 @@
 
 
-import java.io.IOException;
+import java.io.*;
 import java.net.*;
-import java.util.Vector;
+import java.util.Set;
 import java.math.BigInteger;
 import java.util.Random;
+import java.security.SecureRandom;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class is a secure file transfer server. Opens a server socket and 
  * listens for clients.  When one connects a thread is spawned to deal with the client. 
+ * The server keeps accepting clients until "shutdown" is entered on its console.
  *
  * @author Pujan Bhatta
  * @version 1.0
@@ -16,9 +20,35 @@ import java.util.Random;
 public class Server
 {
     private ServerSocket serversock;
-    private Vector <ServerThread> serverthreads;  //holds the active threads
-    private boolean shutdown;  //allows clients to shutdown the server
+    private Set <ServerThread> serverthreads;  //holds the active connections
+    private boolean virtual;  //run each connection on a virtual thread
+    private ThreadPoolExecutor handshakes;  //bounded pool for handshake public-key work, one thread per core
+    private Semaphore handshakeSlots;  //room left in the handshake pool for public-key work
+    private final AtomicLong busy = new AtomicLong();  //handshakes answered "busy" because the pool was full
+    private volatile boolean shutdown;  //allows the admin to shutdown the server
     private int clientcounter;  //id numbers for the clients
+    private volatile DHGroup group;  //Diffie-Hellman group shared by all clients
+    private ScheduledExecutorService regenerator;  //replaces the group periodically
+    private SafePrimePool primes;  //pre-generated safe primes for new groups
+    private EphemeralKeyPool keypairs;  //precomputed Diffie-Hellman key pairs
+    private String kex;  //key exchange mode required of clients, or null for any
+    private SessionCache sessions;  //master secrets of resumable sessions
+
+    // number of Diffie-Hellman key pairs kept ready
+    private static final int KEYPAIR_POOL_SIZE = 32;
+
+    // number of resumable sessions kept, and how long each can be resumed
+    private static final int SESSION_CACHE_SIZE = 1024;
+    private static final long SESSION_TTL = 10 * 60 * 1000L;
+
+    // connections the OS queues until they are accepted, so that bursts of clients are not refused
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    // full handshakes that may wait for the handshake pool, per core, before new ones are answered "busy"
+    private static final int HANDSHAKE_QUEUE_PER_CORE = 16;
+
+    // default parameter file with the standard Diffie-Hellman groups
+    private static final String GROUP_FILE = "dhgroups.txt";
 
     private boolean debug = false;
 
@@ -27,27 +57,44 @@ public class Server
     /**
      * Constructor, makes a new server listening on specified port.
      * @param port The port to listen on.
+     * @param named standard Diffie-Hellman group to use, or null to generate one
      */
-    public Server (int port, boolean setDebug)
+    public Server (int port, boolean setDebug, DHGroup named, String setKex)
     {
 	debug = setDebug;
+	kex = setKex;
+	sessions = new SessionCache(SESSION_CACHE_SIZE, SESSION_TTL);
+	startHandshakePool();
 	clientcounter = 0;
 	shutdown = false;
 
 	// start server socket
 	try {
-	    serversock = new ServerSocket (port);
+	    serversock = new ServerSocket (port, ACCEPT_BACKLOG);
 	}
 	catch (IOException e) {
 	    System.out.println ("Could not create server socket.");
 	    return;
 	}
 
-	// Server socket open, make a vector to store active threads
-	serverthreads = new Vector <ServerThread> (0,1);
+	// Server socket open, make a set to store active connections
+	serverthreads = ConcurrentHashMap.<ServerThread>newKeySet();
 		
 	// Output connection info for the server
 	System.out.println ("Server IP address: " + serversock.getInetAddress().getHostAddress() + ",  port " + port);
+
+	// Generating the Diffie-Hellman group used by every client
+	if (named != null) {
+	    group = named;
+	    System.out.println("Using Diffie-Hellman group " + named.get_name() + ", " + named.get_p().bitLength()
+			       + "-bit p, " + named.get_exponent_bits() + "-bit exponents");
+	}
+	else {
+	    System.out.println("Generating Diffie-Hellman group...");
+	    group = DHGroup.generate(CryptoUtilities.PRIME_BIT_SIZE, new SecureRandom());
+	}
+	keypairs = new EphemeralKeyPool(group, KEYPAIR_POOL_SIZE);
+	System.out.println("Done!");
     }
 
 
@@ -60,6 +107,197 @@ public class Server
     }
 
 
+    /**
+     * accessor for the Diffie-Hellman group.  Threads read it once per handshake,
+     * so a regenerated group only applies to new connections.
+     */
+    public DHGroup getGroup() {
+	return group;
+    }
+
+
+
+    /**
+     * accessor for the session cache
+     */
+    public SessionCache getSessions() {
+	return sessions;
+    }
+
+
+
+    /**
+     * Chooses the key exchange mode for a client:  the proposed mode if the
+     * server accepts any mode and knows it, otherwise the server's own.
+     * @param proposed mode proposed by the client
+     * @return mode to use
+     */
+    public String chooseKex(String proposed) {
+	if (kex != null)
+	    return kex;
+	if (proposed.equals(CryptoUtilities.KEX_X25519))
+	    return CryptoUtilities.KEX_X25519;
+	return CryptoUtilities.KEX_DH;
+    }
+
+
+
+    /**
+     * Takes a precomputed key pair for the given group.  Each pair is used for
+     * one handshake only.
+     */
+    public EphemeralKeyPool.DHKeyPair takeKeyPair(DHGroup g) {
+	return keypairs.take(g);
+    }
+
+
+
+    /**
+     * Regenerates the Diffie-Hellman group in the background every given number
+     * of minutes.  Handshakes keep using the current group until the new one is
+     * ready, and the safe prime for the next group is generated ahead of time.
+     * The ephemeral key pool switches to each new group as it is installed.
+     * @param minutes time between regenerations
+     */
+    public void scheduleRegeneration (int minutes)
+    {
+	primes = new SafePrimePool(1);
+	primes.register(CryptoUtilities.PRIME_BIT_SIZE + 1);
+
+	regenerator = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread (Runnable r) {
+		    Thread t = new Thread(r, "DH group regeneration");
+		    t.setDaemon(true);
+		    t.setPriority(Thread.MIN_PRIORITY);
+		    return t;
+		}
+	    });
+	regenerator.scheduleWithFixedDelay(new Runnable() {
+		public void run () {
+		    DHGroup fresh = DHGroup.fromSafePrime(primes.take(CryptoUtilities.PRIME_BIT_SIZE + 1));
+		    group = fresh;
+		    keypairs.setGroup(fresh);
+		    if (debug)
+			System.out.println("Debug Server: Regenerated DH group, p = " + fresh.get_p());
+		}
+	    }, minutes, minutes, TimeUnit.MINUTES);
+    }
+
+
+
+    /**
+     * Runs each new connection on a virtual thread instead of a platform thread,
+     * so that idle and slow clients do not hold an OS thread each.  The
+     * handshake's public-key work runs on the platform handshake pool, so it
+     * never occupies the few threads that carry the virtual ones.  Stays with
+     * platform threads on JDKs without virtual threads.
+     */
+    public void useVirtualThreads ()
+    {
+	if (!VirtualThreads.available()) {
+	    System.out.println("Virtual threads need Java 21 or later, using platform threads.");
+	    return;
+	}
+
+	virtual = true;
+    }
+
+
+
+    /**
+     * Starts the pool for handshake public-key work:  one platform thread per
+     * core and a bounded queue, so that a burst of new clients cannot take the
+     * CPU from transfers under way.  Each piece of public-key work holds one of
+     * the pool's slots while it is queued or running, so the queue never
+     * overflows.
+     */
+    private void startHandshakePool ()
+    {
+	int cores = Runtime.getRuntime().availableProcessors();
+	int queued = cores * HANDSHAKE_QUEUE_PER_CORE;
+	handshakeSlots = new Semaphore(cores + queued);
+	// the queue has room for every slot, since a slot is given back just before its thread is free
+	handshakes = new ThreadPoolExecutor(cores, cores, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(cores + queued),
+					    new ThreadFactory() {
+		private int count = 0;
+		public Thread newThread (Runnable r) {
+		    Thread t = new Thread(r, "handshake " + count++);
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+    }
+
+
+
+    /**
+     * Admits a new full handshake if the handshake pool has room for more
+     * public-key work.  A client that is not admitted is answered "busy" and
+     * retries later, instead of every session slowing down while the queue
+     * grows.  Resumed sessions need no public-key work and are not counted.
+     * Nothing is held while the client is on the network:  a slot is taken only
+     * when the work is handed to the pool, see handshake().
+     * @return true if the handshake may go ahead
+     */
+    public boolean admitHandshake ()
+    {
+	if (handshakeSlots.availablePermits() > 0)
+	    return true;
+	busy.incrementAndGet();
+	return false;
+    }
+
+
+
+    /**
+     * Wraps public-key work so that it gives back its slot once it has run.
+     */
+    private Runnable holdingSlot (final Runnable work)
+    {
+	return new Runnable() {
+		public void run () {
+		    try {
+			work.run();
+		    }
+		    finally {
+			handshakeSlots.release();
+		    }
+		}
+	    };
+    }
+
+
+
+    /**
+     * Runs a handshake's public-key computation on the handshake pool and waits
+     * for its result, first waiting for a slot if the pool is full.
+     * @param work the computation
+     * @return its result
+     */
+    public <T> T handshake (Callable<T> work)
+    {
+	FutureTask<T> task = new FutureTask<T>(work);
+	try {
+	    handshakeSlots.acquire();
+	    handshakes.execute(holdingSlot(task));
+	    return task.get();
+	}
+	catch (ExecutionException e) {
+	    Throwable cause = e.getCause();
+	    if (cause instanceof RuntimeException)
+		throw (RuntimeException) cause;
+	    if (cause instanceof Error)
+		throw (Error) cause;
+	    throw new IllegalStateException(cause);
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IllegalStateException("Interrupted during the handshake", e);
+	}
+    }
+
+
+
    /**
      * Allows threads to check and see if the server is shutting down.
      * @return True if the server has been told to shutdown.
@@ -73,39 +311,40 @@ public class Server
 
     /**
      * Called by a thread who's client has asked to exit.  Gets rid of the thread.
-     * @param st The ServerThread to remove from the vector of active connections.
+     * @param st The ServerThread to remove from the set of active connections.
      */
     public void kill (ServerThread st)
     {
 	System.out.println ("Killing Client " + st.getID() + ".");
-		
-	/* Find the thread in the vector and remove it. */
-	for (int i = 0; i < serverthreads.size(); i++) {
-	    if (serverthreads.elementAt(i) == st)
-		serverthreads.remove(i);
-	}
+	serverthreads.remove(st);
     }
 	
     /**
-     * Called by a thread who's client has instructed the server to shutdown.
+     * Called by the admin console when the server is instructed to shutdown.
      */
-    public void killall ()
+    public synchronized void killall ()
     {
 	shutdown = true;
 	System.out.println ("Shutting Down Server.");
+	keypairs.shutdown();
+	if (regenerator != null) {
+	    regenerator.shutdownNow();
+	    primes.shutdown();
+	}
 		
 	/* For each active thread, close it's socket.  This will cause the thread
 	 * to stop blocking because of the IO operation, and check the shutdown flag.
 	 * The thread will then exit itself when it sees shutdown is true.  Then exits. */
-	for (int i = serverthreads.size() - 1; i >= 0; i--) {
+	for (ServerThread st : serverthreads) {
 	    try {
-		System.out.println ("Killing Client " + serverthreads.elementAt(i).getID() + ".");
-		serverthreads.elementAt(i).getSocket().close();
+		System.out.println ("Killing Client " + st.getID() + ".");
+		st.getSocket().close();
 	    }
 	    catch (IOException e)
 		{System.out.println ("Could not close socket.");}
-	    serverthreads.remove(i);
+	    serverthreads.remove(st);
 	}
+	handshakes.shutdownNow();
 	try {
 	    serversock.close();
 	} 
@@ -114,6 +353,47 @@ public class Server
 	}		
     }
 	
+    /**
+     * Starts a thread reading admin commands from standard input.  "status" prints
+     * the number of active clients and "shutdown" stops the server.
+     */
+    public void startConsole ()
+    {
+	Thread console = new Thread () {
+		public void run () {
+		    BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in));
+		    try {
+			String command;
+			while (!shutdown && (command = stdIn.readLine()) != null) {
+			    command = command.trim();
+			    if (command.equals("shutdown")) {
+				killall();
+			    }
+			    else if (command.equals("status")) {
+				System.out.println(serverthreads.size() + " active clients, " + clientcounter + " connections so far.");
+				System.out.println(keypairs.available() + " ephemeral key pairs ready, " + keypairs.misses()
+						   + " computed during handshakes.");
+				System.out.println(sessions.size() + " sessions cached, " + sessions.hits() + " resumed, "
+						   + sessions.misses() + " not found or expired.");
+				System.out.println(handshakes.getActiveCount() + " handshakes running, " + handshakes.getQueue().size()
+						   + " queued, " + busy.get() + " turned away busy.");
+			    }
+			    else if (command.length() > 0) {
+				System.out.println("Unknown command.  Use \"status\" or \"shutdown\".");
+			    }
+			}
+		    }
+		    catch (IOException e) {
+			System.out.println("Error reading admin command.");
+		    }
+		}
+	    };
+	console.setDaemon(true);
+	console.start();
+    }
+
+
+
     /**
      * Waits for incoming connections and spins off threads to deal with them.
      */
@@ -130,12 +410,15 @@ public class Server
 		/* Output info about the client */
 		System.out.println ("Client on machine " + client.getInetAddress().getHostAddress() + " has connected on port " + client.getLocalPort() + ".");
 				
-		/* Create a new thread to deal with the client, add it to the vector of open connections.
-		 * Finally, start the thread's execution. Start method makes the threads go by calling their
-		 * run() methods. */
+		/* Create a new ServerThread to deal with the client, add it to the set of open connections.
+		 * Finally, start a thread running it, a virtual one in virtual thread mode.  The thread
+		 * goes by calling the ServerThread's run() method. */
 		st = new ServerThread (client, this, clientcounter++);
 		serverthreads.add (st);
-		st.start ();
+		if (virtual)
+		    VirtualThreads.start(st, "Client " + st.getID());
+		else
+		    new Thread (st).start ();
 	    }
 	    catch (IOException e) {
 		/* Server Socket is closed, probably because a client told the server to shutdown */
@@ -149,9 +432,14 @@ public class Server
      * Outputs usage instructions
      */
     public static void printUsage() {
-	System.out.println ("Usage: java Server port#");
-	System.out.println("     or java Server debug port#");
+	System.out.println ("Usage: java Server port# [debug] [regen minutes] [group name] [groupfile filename] [kex dh|x25519] [virtual]");
 	System.out.println (" - port is a positive integer identifying the port to connect to the server");
+	System.out.println (" - debug prints protocol messages");
+	System.out.println (" - regen regenerates the Diffie-Hellman group every given number of minutes");
+	System.out.println (" - group uses a standard group such as ffdhe3072 instead of generating one");
+	System.out.println (" - groupfile is the parameter file holding the standard groups (default " + GROUP_FILE + ")");
+	System.out.println (" - kex makes every client use the given key exchange (default: as proposed by the client)");
+	System.out.println (" - virtual runs each client on a virtual thread (Java 21 or later), with key agreement on a pool sized to the cores");
     }
 
 
@@ -165,34 +453,69 @@ public class Server
     public static void main (String [] args)
     {
 	boolean setDebug = false;
+	int regenMinutes = 0;
+	String groupName = null;
+	String groupFile = GROUP_FILE;
+	String kex = null;
+	boolean virtual = false;
 
-	if (args.length < 1 || args.length > 2) {
+	if (args.length < 1) {
 	    printUsage();
 	    return;
 	}
 
-	// check if debug flag is being set
-	int port;
-	if (args.length == 2) {
-	    if (args[1].compareTo("debug") == 0) {
+	// check for the optional debug flag and regeneration interval
+	int port = Integer.parseInt(args[0]);
+	for (int i = 1; i < args.length; i++) {
+	    if (args[i].compareTo("debug") == 0) {
 		setDebug = true;
-		port = Integer.parseInt(args[0]);
+	    }
+	    else if (args[i].compareTo("regen") == 0 && i+1 < args.length) {
+		regenMinutes = Integer.parseInt(args[++i]);
+	    }
+	    else if (args[i].compareTo("group") == 0 && i+1 < args.length) {
+		groupName = args[++i];
+	    }
+	    else if (args[i].compareTo("groupfile") == 0 && i+1 < args.length) {
+		groupFile = args[++i];
+	    }
+	    else if (args[i].compareTo("kex") == 0 && i+1 < args.length
+		     && (args[i+1].equals(CryptoUtilities.KEX_DH) || args[i+1].equals(CryptoUtilities.KEX_X25519))) {
+		kex = args[++i];
+	    }
+	    else if (args[i].compareTo("virtual") == 0) {
+		virtual = true;
 	    }
 	    else {
 		printUsage();
 		return;
 	    }
 	}
-	else {
-	    port = Integer.parseInt(args[0]);
-	}
 
 
 
+	// a standard group is fixed, only generated groups can be regenerated
+	if (groupName != null && regenMinutes > 0) {
+	    printUsage();
+	    System.out.println ("Error:  regen cannot be used with a standard group.");
+	    return;
+	}
+
+	DHGroup named = null;
+	if (groupName != null) {
+	    try {
+		named = DHGroup.load(groupFile, groupName);
+	    }
+	    catch (IOException e) {
+		System.out.println ("Error:  " + e.getMessage());
+		return;
+	    }
+	}
+
 	// initialize server and socket connection
 	Server s;
 	try {
-	    s = new Server (port,setDebug);
+	    s = new Server (port,setDebug,named,kex);
 	}
 	catch (NumberFormatException e) {
 	    printUsage();
@@ -201,7 +524,14 @@ public class Server
 	}
 
 
+	if (regenMinutes > 0)
+	    s.scheduleRegeneration(regenMinutes);
+	if (virtual)
+	    s.useVirtualThreads();
+
 	// server listens to socket connections until told to shut down
+	System.out.println("Enter \"shutdown\" to stop the server.");
+	s.startConsole();
 	s.listen();
     }
 	
@@ -1,18 +1,20 @@
 import java.net.*;
 import java.io.*;
+import java.nio.file.*;
 import java.security.*;
 import javax.crypto.*;
 import javax.crypto.spec.*;
 import java.math.BigInteger;
 import java.util.Random;
+import java.util.concurrent.Callable;
 /**
- * This class represents a thread to deal with clients who connect to Server.  
- * Put what you want the thread to do in it's run() method.
+ * This class deals with a client who connects to Server, on a thread of its
+ * own.  Put what you want the thread to do in it's run() method.
  *
- * @author Pujan Bhatta
+ * @author Pujan Bhatta
  * @version 1.0
  */
-public class ServerThread extends Thread
+public class ServerThread implements Runnable
 {
     private Socket sock;  //The socket it communicates with the client on.
     private Server parent;  //Reference to Server object for message passing.
@@ -20,10 +22,10 @@ public class ServerThread extends Thread
     private DataOutputStream out;
     private DataInputStream in;
     private SecretKeySpec key;   // AES encryption key
+    private String records;  // record protection mode of the session
+    private CryptoSession session;  // record protection, set up by getKey
+    private byte[] master;       // master secret for resuming the session
 
-    private BigInteger q;
-    private BigInteger p;
-    private BigInteger g;
     private BigInteger ga;
     private BigInteger gb;
     private BigInteger gba;
@@ -83,74 +85,169 @@ public class ServerThread extends Thread
 
 
     /**
-     * Prompts user for a sting to be used as seed for deriving the AES key
+     * Agrees on an AES key with the client.  The client proposes a key exchange
+     * mode and presents a session ID, or an empty one, with a nonce.  If the
+     * session is cached the server answers "resume" with its own nonce and the
+     * key is derived from the session's master secret.  Otherwise it answers
+     * with the mode it accepts and a new session ID, and the exchange then runs
+     * in that mode.  If the server's handshake pool is full, a new session is
+     * answered "busy" instead and the connection closed, for the client to retry
+     * later.
      */
     public void getKey() {
-        debug("Generating random prime");
-    	do{
-    		q = new BigInteger(CryptoUtilities.PRIME_BIT_SIZE, new Random());
-    		p = q.multiply(BigInteger.valueOf(2)).add(BigInteger.valueOf(1));
-			
-    	}while(p.isProbablePrime(3));
-    	debug("Sending the prime number prime");
+	String mode;
+	byte[] sessionId;
+	try {
+	    records = CryptoUtilities.record_mode(new String(CryptoUtilities.receive(in)));
+	    String proposed = new String(CryptoUtilities.receive(in));
+	    byte[] clientId = CryptoUtilities.receive(in);
+	    byte[] clientNonce = CryptoUtilities.receive(in);
+	    debug("Using " + records + " records");
+	    CryptoUtilities.queue(records.getBytes(), out);
+
+	    SessionCache sessions = parent.getSessions();
+	    byte[] cached = clientId.length > 0 ? sessions.get(clientId) : null;
+	    if (cached != null) {
+		debug("Resuming session " + CryptoUtilities.toHexString(clientId));
+		byte[] serverNonce = CryptoUtilities.nonce();
+		CryptoUtilities.queue(CryptoUtilities.KEX_RESUME.getBytes(), out);
+		CryptoUtilities.send(serverNonce, out);
+		key = CryptoUtilities.resumption_key(cached, clientNonce, serverNonce);
+		debug("Using key = " + CryptoUtilities.toHexString(key.getEncoded()));
+		session = new CryptoSession(key, records);
+		return;
+	    }
+
+	    // a new session needs public-key work:  turn the client away if the handshake pool is full
+	    if (!parent.admitHandshake()) {
+		System.out.println("Handshake pool full, client " + idnum + " told to retry.");
+		CryptoUtilities.send(CryptoUtilities.KEX_BUSY.getBytes(), out);
+		close();
+		return;
+	    }
+
+	    mode = parent.chooseKex(proposed);
+	    debug("Client proposed " + proposed + " key exchange, using " + mode);
+	    sessionId = sessions.newId();
+	    CryptoUtilities.queue(mode.getBytes(), out);
+	    CryptoUtilities.queue(sessionId, out);
+	}
+	catch (IOException e) {
+	    System.out.println("Error negotiating key exchange");
+	    close();
+	    return;
+	}
+
+	if (mode.equals(CryptoUtilities.KEX_X25519))
+	    getKeyX25519();
+	else
+	    getKeyDH();
+
+	// the session can be resumed once its master secret is known
+	if (key != null)
+	    parent.getSessions().put(sessionId, master);
+
+	// set up record protection for the rest of the connection
+	if (key != null)
+	    session = new CryptoSession(key, records);
+    }
+
+
+
+    /**
+     * Agrees on an AES key with the client using X25519.  The mode and the
+     * server's public key go out in one flight.
+     */
+    private void getKeyX25519() {
+	final KeyPair pair = parent.handshake(new Callable<KeyPair>() {
+		public KeyPair call () {
+		    return X25519Exchange.generateKeyPair();
+		}
+	    });
+	final byte[] peer;
+	try {
+	    debug("Sending X25519 public key");
+	    CryptoUtilities.send(X25519Exchange.encode(pair.getPublic()), out);
+	    peer = CryptoUtilities.receive(in);
+	}
+	catch (IOException e) {
+	    System.out.println("Error in X25519 key exchange");
+	    close();
+	    return;
+	}
+
+	byte[] secret = parent.handshake(new Callable<byte[]>() {
+		public byte[] call () {
+		    try {
+			return X25519Exchange.secret(pair.getPrivate(), peer);
+		    }
+		    catch (GeneralSecurityException e) {
+			return null;
+		    }
+		}
+	    });
+	if (secret == null) {
+	    System.out.println("Invalid X25519 public key from client");
+	    close();
+	    return;
+	}
+	key = CryptoUtilities.key_from_seed(secret);
+	master = CryptoUtilities.master_from_seed(secret);
+	debug("Using key = " + CryptoUtilities.toHexString(key.getEncoded()));
+    }
+
+
+
+    /**
+     * Agrees on an AES key with the client using Diffie-Hellman over the
+     * server's shared group.  Since gb does not depend on ga, the mode, p, g
+     * and gb go out in one flight, and the client answers with ga as soon as
+     * it has computed it.
+     */
+    private void getKeyDH() {
+	// the group is generated once by the server and shared by all clients
+	final DHGroup group = parent.getGroup();
+	final BigInteger p = group.get_p();
+	BigInteger g = group.get_g();
+
+        // b and g^b were computed ahead of time, only ga^b is left
+        EphemeralKeyPool.DHKeyPair pair = parent.handshake(new Callable<EphemeralKeyPool.DHKeyPair>() {
+		public EphemeralKeyPool.DHKeyPair call () {
+		    return parent.takeKeyPair(group);
+		}
+	    });
+        b = pair.x;
+        gb = pair.gx;
+
+    	debug("Sending the prime p = " + p + ", g = " + g + " and gb");
     	try{
-    		CryptoUtilities.send(p.toByteArray(), out);
-    	}
-    	catch(IOException e){
-    		System.out.println("Error Sending p");
-    		
-    	}
-        debug("finding primitive root");
-    	g = BigInteger.valueOf(1);
-    	boolean isPrimitive = false;
-        while(isPrimitive != true){
-            if(g.modPow(q, p).compareTo(BigInteger.valueOf(1)) != 0){
-                isPrimitive = true;
-            }
-            else{
-                g = g.add(BigInteger.valueOf(1));
-                if(g.compareTo(p.subtract(BigInteger.valueOf(2))) == 0){
-                    System.out.println("Couldn't find a primitive root");
-                        System.exit(0);
-                }
-            }
-			
-            
-        }
-		System.out.println("a");
-        debug("Sending g");
-        try{
-    		CryptoUtilities.send(g.toByteArray(), out);
+    		CryptoUtilities.queue(p.toByteArray(), out);
+    		CryptoUtilities.queue(g.toByteArray(), out);
+    		CryptoUtilities.send(gb.toByteArray(), out);
     	}
     	catch(IOException e){
-    		System.out.println("Error Sending g");
-    		
+    		System.out.println("Error Sending p, g and gb");
+    		close();
+    		return;
     	}
-        System.out.println("b");
-        debug("calculating the key");
-        b = new BigInteger(p.subtract(BigInteger.valueOf(2)).bitLength(), new Random());
-        gb = g.modPow(b, p);
 
         try{
             ga = new BigInteger(CryptoUtilities.receive(in));
         }
         catch(IOException e){
             System.out.println("Error recieving ga");
-
+            close();
+            return;
         }
-		System.out.println("c");
-        try{
-            CryptoUtilities.send(gb.toByteArray(), out);
-    	}
-    	catch(IOException e){
-            System.out.println("Error Sending gb");
-    		
-    	}
-		System.out.println("d");
-        gba = ga.modPow(b, p);
+        debug("calculating the key");
+        gba = parent.handshake(new Callable<BigInteger>() {
+		public BigInteger call () {
+		    return ga.modPow(b, p);
+		}
+	    });
         key = CryptoUtilities.key_from_seed(gba.toByteArray());
+        master = CryptoUtilities.master_from_seed(gba.toByteArray());
 		debug("Using key = " + CryptoUtilities.toHexString(key.getEncoded()));
-		System.out.println("e");
     }
         
     /**
@@ -164,7 +261,7 @@ public class ServerThread extends Thread
 	String outfilename;
 	try {
 	    debug("Receiving output file name");
-	    outfilename = new String(CryptoUtilities.receiveAndDecrypt(key,in));
+	    outfilename = new String(session.receiveAndOpen(in));
 	    debug("Got file name = " + outfilename);
 	}
 	catch (IOException e) {
@@ -178,10 +275,10 @@ public class ServerThread extends Thread
 
 
 	// get the file size
-	int size;
+	long size;
 	try {
 	    debug("Receiving file size");
-	    size = Integer.parseInt(new String(CryptoUtilities.receiveAndDecrypt(key,in)));	
+	    size = Long.parseLong(new String(session.receiveAndOpen(in)));	
 	    debug("Got file size = " + size);
 	}
 	catch (IOException e) {
@@ -193,13 +290,18 @@ public class ServerThread extends Thread
 
 	System.out.println("File size = " + size);
 
+	// large files arrive as a stream of chunks and are written as they are verified
+	if (size > CryptoUtilities.stream_threshold(records))
+	    return receiveStream(outfilename, size);
 
 
-	// get the encrypted, integrity-protected file
-	byte[] hashed_plaintext;
+	// get the encrypted, integrity-protected file, then decrypt and check
+	// validity of MAC or tag (in cbc-etm mode, check the MAC first)
+	byte[] plaintext;
+	session.setParallelCBC(true);  // a large CBC record is decrypted on several cores
 	try {
-	    debug("Receiving and decrypting file with MAC appended");
-	    hashed_plaintext = CryptoUtilities.receiveAndDecrypt(key,in);
+	    debug("Receiving file in " + records + " record mode");
+	    plaintext = session.receiveRecord(in);
 	}
 	catch (IOException e) {
 	    System.out.println("Error receiving encrypted file");
@@ -208,16 +310,12 @@ public class ServerThread extends Thread
 	}
 
 
-	// check validity of MAC.  Write to the file if valid.
-	debug("Checking MAC");
+	// Write to the file if valid.
 	boolean fileOK = false;
-	if (CryptoUtilities.verify_hash(hashed_plaintext,key)) {
+	if (plaintext != null) {
 	    debug("Message digest OK.  Writing file.");
 	    System.out.println("Message digest OK. Writing file");
 
-	    // extract plaintext and output to file
-	    byte[] plaintext = CryptoUtilities.extract_message(hashed_plaintext);
-
 	    // writing file
 	    FileOutputStream outfile = null;
 	    try {
@@ -246,7 +344,7 @@ public class ServerThread extends Thread
 	    // send acknowledgement to client
 	    try {
 		debug("Sending \"passed\" acknowledgement.");
-		CryptoUtilities.encryptAndSend("Passed".getBytes(),key,out);
+		session.sealAndSend("Passed".getBytes(),out);
 	    }
 	    catch (IOException e) {
 		System.out.println("Error sending passed acknowledgement.");
@@ -261,7 +359,7 @@ public class ServerThread extends Thread
 
 	    try {
 		debug("Sending \"Failed\" acknowledgement.");
-		CryptoUtilities.encryptAndSend("Failed".getBytes(),key,out);
+		session.sealAndSend("Failed".getBytes(),out);
 	    }
 	    catch (IOException e) {
 		System.out.println("Error sending failed acknowledgement.");
@@ -276,6 +374,75 @@ public class ServerThread extends Thread
 
 
 
+    /**
+     * Receives a file sent as a stream of chunks.  Each chunk is written to a
+     * temporary file as soon as its MAC has been checked, and the temporary file
+     * replaces the output file once the trailer has been verified.
+     * @param outfilename name of the output file
+     * @param size number of bytes announced by the client
+     * @return true if file transfer was successful
+     */
+    private boolean receiveStream(String outfilename, long size) {
+	debug("Receiving and decrypting file as a stream of chunks");
+	File partfile = new File(outfilename + ".part");
+
+	// receive the chunks, writing each verified chunk straight to disk
+	boolean fileOK;
+	try {
+	    FileOutputStream outfile = new FileOutputStream(partfile);
+	    try {
+		fileOK = session.receiveAndDecryptStream(in,outfile,size);
+	    }
+	    finally {
+		outfile.close();
+	    }
+	}
+	catch (IOException e) {
+	    System.out.println("Error receiving encrypted file");
+	    partfile.delete();
+	    close();
+	    return false;
+	}
+
+	// move the complete file into place, or discard it
+	if (fileOK) {
+	    debug("Message digests OK.  Writing file.");
+	    try {
+		Files.move(partfile.toPath(), Paths.get(outfilename), StandardCopyOption.REPLACE_EXISTING);
+	    }
+	    catch (IOException e) {
+		System.out.println("Error writing decrypted file.");
+		partfile.delete();
+		close();
+		return false;
+	    }
+	}
+	else {
+	    System.out.println("Integrity check failed.  File not written.");
+	    partfile.delete();
+	}
+
+	// send acknowledgement to client
+	String ack = fileOK ? "Passed" : "Failed";
+	try {
+	    debug("Sending \"" + ack + "\" acknowledgement.");
+	    session.sealAndSend(ack.getBytes(),out);
+	}
+	catch (IOException e) {
+	    System.out.println("Error sending " + ack.toLowerCase() + " acknowledgement.");
+	    close();
+	    return fileOK;
+	}
+
+	if (fileOK)
+	    System.out.println("File written successfully.");
+
+	close();
+	return fileOK;
+    }
+
+
+
     /**
      * Shuts down the socket connection
      */
@@ -299,14 +466,17 @@ public class ServerThread extends Thread
 	
     /**
      * This is what the thread does as it executes.  Gets the encryption key,
-     * receives a file from the client, and shuts down.
+     * receives a file from the client, and removes itself from the server.  The
+     * server itself keeps running until it is told to shut down.
      */
     public void run ()
     {
 	// open input and output streams for file transfer
 	try {
-	    in = new DataInputStream(sock.getInputStream());
-	    out = new DataOutputStream(sock.getOutputStream());
+	    // messages are flushed at the end of each flight, so Nagle's algorithm only adds delay
+	    sock.setTcpNoDelay(true);
+	    in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+	    out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
 	}
 	catch (UnknownHostException e) {
 	    System.out.println ("Unknown host error.");
@@ -319,14 +489,18 @@ public class ServerThread extends Thread
 	    return;
 	}
 
-	// get the encryption key
-	getKey();
-
-	// do file transfer
-	receiveFile();
+	try {
+	    // get the encryption key
+	    getKey();
 
-	// shut down the client and kill the server
-	close();
-	parent.killall();
+	    // do file transfer
+	    if (key != null)
+		receiveFile();
+	}
+	finally {
+	    // shut down the client, leaving the server running
+	    close();
+	    parent.kill(this);
+	}
     }
 }
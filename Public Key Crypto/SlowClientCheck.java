@@ -0,0 +1,152 @@
+import java.io.*;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * End-to-end check of a client whose user is slow to name the file.  The
+ * client's key exchange value has to reach the server before the user is
+ * asked for the file names, and the server must not give up on a client that
+ * is only waiting for its user.  Starts a server in this process, then runs one
+ * client per key exchange mode with file names that arrive only after the
+ * delay, and checks that the file arrives intact.
+ *
+ * @author Pujan Bhatta
+ * @version 1.0
+ */
+public class SlowClientCheck
+{
+    // size of the file sent by each client
+    private static final int FILE_SIZE = 200 * 1024;
+
+
+
+    /**
+     * Standard input of a user who answers both file name prompts at once,
+     * after a delay.
+     */
+    private static class SlowInput extends InputStream
+    {
+	private final long delay;
+	private final InputStream answers;
+	private boolean waited = false;
+
+	SlowInput (long delay, String answers)
+	{
+	    this.delay = delay;
+	    this.answers = new ByteArrayInputStream(answers.getBytes());
+	}
+
+	public int read () throws IOException
+	{
+	    byte[] b = new byte[1];
+	    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+	}
+
+	public int read (byte[] b, int off, int len) throws IOException
+	{
+	    if (!waited) {
+		waited = true;
+		try {
+		    Thread.sleep(delay);
+		}
+		catch (InterruptedException e) {
+		    throw new InterruptedIOException();
+		}
+	    }
+	    return answers.read(b, off, len);
+	}
+    }
+
+
+
+    /**
+     * Sends a file through a client whose user waits before naming it.
+     * @return true if the server wrote the same file
+     */
+    private static boolean transfer (int port, String kex, long delay, File dir, byte[] data) throws IOException
+    {
+	File infile = new File(dir, "in-" + kex);
+	File outfile = new File(dir, "out-" + kex);
+	Files.write(infile.toPath(), data);
+	outfile.delete();
+
+	InputStream stdin = System.in;
+	System.setIn(new SlowInput(delay, infile.getPath() + "\n" + outfile.getPath() + "\n"));
+	try {
+	    Client.main(new String[] { "localhost", Integer.toString(port), "kex", kex });
+	}
+	finally {
+	    System.setIn(stdin);
+	}
+	return outfile.exists() && Arrays.equals(data, Files.readAllBytes(outfile.toPath()));
+    }
+
+
+
+    /**
+     * Outputs usage instructions
+     */
+    private static void printUsage()
+    {
+	System.out.println ("Usage: java SlowClientCheck port# [seconds] [groupfile filename group name]");
+	System.out.println (" - port is a free port for the server started by the check");
+	System.out.println (" - seconds is how long the user takes to name the file (default 7)");
+	System.out.println (" - groupfile and group select a standard Diffie-Hellman group instead of generating one");
+    }
+
+
+
+    /**
+     * Runs the check and exits with status 1 if a transfer failed.
+     */
+    public static void main (String [] args) throws Exception
+    {
+	if (args.length < 1) {
+	    printUsage();
+	    return;
+	}
+	int port = Integer.parseInt(args[0]);
+	int seconds = 7;
+	String groupFile = "dhgroups.txt";
+	String groupName = null;
+	for (int i = 1; i < args.length; i++) {
+	    if (args[i].compareTo("groupfile") == 0 && i+1 < args.length)
+		groupFile = args[++i];
+	    else if (args[i].compareTo("group") == 0 && i+1 < args.length)
+		groupName = args[++i];
+	    else if (args[i].matches("[0-9]+"))
+		seconds = Integer.parseInt(args[i]);
+	    else {
+		printUsage();
+		return;
+	    }
+	}
+
+	final Server server = new Server(port, false, groupName != null ? DHGroup.load(groupFile, groupName) : null, null);
+	Thread listener = new Thread("listener") {
+		public void run () {
+		    server.listen();
+		}
+	    };
+	listener.setDaemon(true);
+	listener.start();
+
+	File dir = Files.createTempDirectory("slowclient").toFile();
+	byte[] data = new byte[FILE_SIZE];
+	new SecureRandom().nextBytes(data);
+
+	boolean passed = true;
+	for (String kex : new String[] { CryptoUtilities.KEX_DH, CryptoUtilities.KEX_X25519 }) {
+	    boolean ok = transfer(port, kex, seconds * 1000L, dir, data);
+	    System.out.println("Slow client, " + kex + " key exchange, " + seconds + " s to name the file:  " + (ok ? "passed" : "FAILED"));
+	    passed &= ok;
+	}
+
+	server.killall();
+	for (File f : dir.listFiles())
+	    f.delete();
+	dir.delete();
+	System.exit(passed ? 0 : 1);
+    }
+}
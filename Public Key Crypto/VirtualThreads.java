@@ -0,0 +1,81 @@
+import java.lang.reflect.*;
+
+/**
+ * This class starts virtual threads on JDKs that have them (Java 21 and
+ * later) through reflection, so that the code still compiles and runs on older
+ * JDKs, where platform threads are started instead.  A virtual thread parks
+ * instead of holding an OS thread while it waits for socket I/O, so a server can
+ * keep many thousands of mostly idle connections open.
+ *
+ * @author Pujan Bhatta
+ * @version 1.0
+ */
+public class VirtualThreads
+{
+    // Thread.ofVirtual(), Thread.Builder.name(String) and Thread.Builder.start(Runnable), or null before Java 21
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method START;
+
+    static {
+	Method ofVirtual = null, name = null, start = null;
+	try {
+	    Class<?> builder = Class.forName("java.lang.Thread$Builder");
+	    ofVirtual = Thread.class.getMethod("ofVirtual");
+	    name = builder.getMethod("name", String.class);
+	    start = builder.getMethod("start", Runnable.class);
+
+	    // Java 19 and 20 have the methods as a preview feature, disabled by default
+	    ofVirtual.invoke(null);
+	}
+	catch (Exception e) {
+	    ofVirtual = null;
+	}
+	OF_VIRTUAL = ofVirtual;
+	NAME = name;
+	START = start;
+    }
+
+
+
+    /**
+     * Whether this JDK supports virtual threads.
+     */
+    public static boolean available ()
+    {
+	return OF_VIRTUAL != null;
+    }
+
+
+
+    /**
+     * Starts the task on a new virtual thread, or on a new platform thread if
+     * this JDK does not support virtual threads.
+     * @param task what the thread runs
+     * @param name name of the thread
+     * @return the started thread
+     */
+    public static Thread start (Runnable task, String name)
+    {
+	if (OF_VIRTUAL != null) {
+	    try {
+		return (Thread) START.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), name), task);
+	    }
+	    catch (IllegalAccessException e) {
+		throw new IllegalStateException(e);
+	    }
+	    catch (InvocationTargetException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof RuntimeException)
+		    throw (RuntimeException) cause;
+		if (cause instanceof Error)
+		    throw (Error) cause;
+		throw new IllegalStateException(cause);
+	    }
+	}
+
+	Thread thread = new Thread(task, name);
+	thread.start();
+	return thread;
+    }
+}
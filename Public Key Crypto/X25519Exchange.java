@@ -0,0 +1,79 @@
+import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * This class implements the X25519 elliptic curve key exchange mode with the
+ * JDK's XDH provider.  Each side sends an ephemeral public key, and the shared
+ * secret is turned into the AES session key the same way as in the
+ * Diffie-Hellman mode.
+ *
+ * @author Pujan Bhatta
+ * @version 1.0
+ */
+public class X25519Exchange
+{
+    private static final String ALGORITHM = "X25519";
+
+
+
+    /**
+     * Generates an ephemeral key pair.
+     * @return the new key pair
+     */
+    public static KeyPair generateKeyPair ()
+    {
+	try {
+	    return KeyPairGenerator.getInstance(ALGORITHM).generateKeyPair();
+	}
+	catch (NoSuchAlgorithmException e) {
+	    throw new IllegalStateException("X25519 is not supported by this JDK", e);
+	}
+    }
+
+
+
+    /**
+     * Encodes a public key for sending, in X.509 SubjectPublicKeyInfo form.
+     */
+    public static byte[] encode (PublicKey pub)
+    {
+	return pub.getEncoded();
+    }
+
+
+
+    /**
+     * Computes the session key from our private key and the peer's encoded
+     * public key.
+     * @param priv our private key
+     * @param peer the peer's public key as sent by encode()
+     * @throws GeneralSecurityException if the peer's key is malformed or of small order
+     * @return the AES session key
+     */
+    public static SecretKeySpec agree (PrivateKey priv, byte[] peer) throws GeneralSecurityException
+    {
+	return CryptoUtilities.key_from_seed(secret(priv, peer));
+    }
+
+
+
+    /**
+     * Computes the raw shared secret from our private key and the peer's encoded
+     * public key.
+     * @param priv our private key
+     * @param peer the peer's public key as sent by encode()
+     * @throws GeneralSecurityException if the peer's key is malformed or of small order
+     * @return the 32-byte shared secret
+     */
+    public static byte[] secret (PrivateKey priv, byte[] peer) throws GeneralSecurityException
+    {
+	PublicKey pub = KeyFactory.getInstance(ALGORITHM).generatePublic(new X509EncodedKeySpec(peer));
+	KeyAgreement agreement = KeyAgreement.getInstance(ALGORITHM);
+	agreement.init(priv);
+	agreement.doPhase(pub, true);
+
+	return agreement.generateSecret();
+    }
+}
@@ -0,0 +1,54 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * This class is a pool of direct byte buffers of one size, owned by a single
+ * event loop thread of the NIO server.  Direct buffers are expensive to
+ * allocate and are only freed by the garbage collector, so they are reused
+ * instead of being allocated for every read or write.
+ *
+ * @author Pujan Bhatta
+ * @version 1.0
+ */
+public class BufferPool
+{
+    private final int size;  // capacity of each buffer
+    private final int max;   // most buffers kept for reuse
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+
+
+    /**
+     * Constructor.
+     * @param size capacity of each buffer (in bytes)
+     * @param max most buffers kept for reuse;  more are left to the garbage collector
+     */
+    public BufferPool (int size, int max)
+    {
+	this.size = size;
+	this.max = max;
+    }
+
+
+
+    /**
+     * Takes a cleared buffer from the pool, allocating one if the pool is empty.
+     */
+    public ByteBuffer take ()
+    {
+	ByteBuffer buffer = free.poll();
+	return buffer != null ? buffer : ByteBuffer.allocateDirect(size);
+    }
+
+
+
+    /**
+     * Returns a buffer to the pool.
+     */
+    public void give (ByteBuffer buffer)
+    {
+	buffer.clear();
+	if (free.size() < max)
+	    free.push(buffer);
+    }
+}
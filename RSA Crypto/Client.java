@@ -21,6 +21,13 @@ public class Client
     private DataOutputStream out;
     private DataInputStream in;
     private SecretKeySpec key;   // AES encryption key
+    private String host;  // server as given on the command line
+    private int port;
+    private String records;  // record mode proposed to the server, then as confirmed by it
+    private CryptoSession session;  // record protection, set up by getKey
+    private String sessionFile;  // ticket file for session resumption, or null
+    private String keyFile;  // cache file for server public keys, or null
+    private int retries;  // handshakes the server has answered "busy"
 
 
     /**
@@ -39,27 +46,47 @@ public class Client
      * Constructor, in this case does everything.
      * @param ipaddress The hostname to connect to.
      * @param port The port to connect to.
+     * @param setRecords record protection mode to propose to the server
+     * @param setSessionFile ticket file for resuming sessions, or null
+     * @param setKeyFile cache file for server public keys, or null
      */
-    public Client (String ipaddress, int port, boolean setDebug)
+    public Client (String ipaddress, int port, boolean setDebug, String setRecords, String setSessionFile, String setKeyFile)
     {
 	// set the debug flag
 	debug = setDebug;
+	records = setRecords;
+	host = ipaddress;
+	this.port = port;
+	sessionFile = setSessionFile;
+	keyFile = setKeyFile;
 
 	// open reader for usesr input
 	stdIn = new BufferedReader(new InputStreamReader(System.in));
 
+	connect();
+    }
+
+
+
+
+    /**
+     * Connects to the server and opens the input and output streams.
+     * @return true if connected
+     */
+    private boolean connect()
+    {
 	// Try to connect to the specified host on the specified port.
 	try {
-	    sock = new Socket (InetAddress.getByName(ipaddress), port);
+	    sock = new Socket (InetAddress.getByName(host), port);
 	}
 	catch (UnknownHostException e) {
 	    System.out.println ("Usage: java Client hostname port#");
 	    System.out.println ("First argument is not a valid hostname");
-	    return;
+	    return false;
 	}
 	catch (IOException e) {
-	    System.out.println ("Could not connect to " + ipaddress + ".");
-	    return;
+	    System.out.println ("Could not connect to " + host + ".");
+	    return false;
 	}
 		
 	// Status info
@@ -70,17 +97,22 @@ public class Client
 	in = null;
 	out = null;
 	try {
-	    in = new DataInputStream(sock.getInputStream());
-	    out = new DataOutputStream(sock.getOutputStream());
+	    // messages are flushed at the end of each flight, so Nagle's algorithm only adds delay
+	    sock.setTcpNoDelay(true);
+	    in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+	    out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
 	}
 	catch (UnknownHostException e) {
 	    System.out.println ("Unknown host error.");
 	    close();
+	    return false;
 	}
 	catch (IOException e) {
 	    System.out.println ("Could not create output stream.");
 	    close();
+	    return false;
 	}
+	return true;
     }
 
 
@@ -88,11 +120,55 @@ public class Client
 
     /**
      * Generates a random AES-128 key and sends to the server using the server's public
-     * RSA key.
+     * RSA key.  If the ticket file holds a session the server still has cached,
+     * the session is resumed instead and the key is derived from its master
+     * secret.  A new session is saved to the ticket file.  If the key cache holds
+     * a public key for this server, its fingerprint is presented so that the
+     * server need not send the key again.  If the server is too busy for a new
+     * handshake, the client reconnects and tries again a little later.
      */
     public void getKey() {
 	debug("Starting getKey");
 
+	// offer the session saved by the last run, if any
+	SessionTicket ticket = sessionFile != null ? SessionTicket.load(sessionFile, host, port) : null;
+	// and the fingerprint of the server's key from the last run, if any
+	KeyCache keys = keyFile != null ? KeyCache.load(keyFile, debug) : null;
+	RSATool known = keys != null ? keys.lookup(host, port) : null;
+	byte[] clientNonce = CryptoUtilities.nonce();
+	byte[] sessionId;
+	try {
+	    CryptoUtilities.queue(records.getBytes(), out);
+	    CryptoUtilities.queue(ticket != null ? ticket.get_id() : new byte[0], out);
+	    CryptoUtilities.queue(known != null ? known.fingerprint() : new byte[0], out);
+	    CryptoUtilities.send(clientNonce, out);
+	    String chosen = new String(CryptoUtilities.receive(in));
+	    if (!chosen.equals(records) && !chosen.equals(CryptoUtilities.RECORDS_CBC_HMAC))
+		throw new IOException("server chose a record mode that was not proposed");
+	    records = chosen;
+	    String answer = new String(CryptoUtilities.receive(in));
+
+	    if (answer.equals(CryptoUtilities.HANDSHAKE_BUSY)) {
+		retryKey();
+		return;
+	    }
+	    if (answer.equals(CryptoUtilities.HANDSHAKE_RESUME)) {
+		if (ticket == null)
+		    throw new IOException("server resumed a session that was not offered");
+		byte[] serverNonce = CryptoUtilities.receive(in);
+		key = CryptoUtilities.resumption_key(ticket.get_master(), clientNonce, serverNonce);
+		debug("Resumed session, AES key = " + CryptoUtilities.toHexString(key.getEncoded()));
+		session = new CryptoSession(key, records);
+		return;
+	    }
+	    sessionId = CryptoUtilities.receive(in);
+	}
+	catch (IOException ex) {
+	    System.out.println("Error starting the handshake with the server.");
+	    close();
+	    return;
+	}
+
 	//key setup - generate random 128 bit AES key
 	debug("Generating random AES-128 key");
 	SecretKey sec_key = null;
@@ -112,38 +188,59 @@ public class Client
 	key = new SecretKeySpec(raw, "AES");
 	debug("AES key = " + CryptoUtilities.toHexString(raw));
 
-	// get n from the server
-	debug("Receiving RSA modulus n from the server.");
-	byte[] encodedn;
+	// find out whether the server's key is the one in the cache
+	String keyAnswer;
 	try {
-	    encodedn = CryptoUtilities.receive(in);
+	    keyAnswer = new String(CryptoUtilities.receive(in));
+	    if (keyAnswer.equals(CryptoUtilities.PUBKEY_CACHED) && known == null)
+		throw new IOException("server referred to a key that was not offered");
 	}
 	catch (IOException ex) {
-	    System.out.println("Error receiving n from server.");
+	    System.out.println("Error receiving public key from server.");
 	    close();
 	    return;
 	}
-	BigInteger n = new BigInteger(encodedn);
-	debug("Received n = " + n);
 
-	// get e from the server
-	debug("Receiving RSA exponent e from the server.");
-	byte[] encodede;
-	try {
-	    encodede = CryptoUtilities.receive(in);
+	RSATool RSA;
+	if (keyAnswer.equals(CryptoUtilities.PUBKEY_CACHED)) {
+	    RSA = known;
+	    debug("Using cached key, n = " + RSA.get_n());
 	}
-	catch (IOException ex) {
-	    System.out.println("Error receiving e from server.");
-	    close();
-	    return;
+	else {
+	    // get n from the server
+	    debug("Receiving RSA modulus n from the server.");
+	    byte[] encodedn;
+	    try {
+		encodedn = CryptoUtilities.receive(in);
+	    }
+	    catch (IOException ex) {
+		System.out.println("Error receiving n from server.");
+		close();
+		return;
+	    }
+	    BigInteger n = new BigInteger(encodedn);
+	    debug("Received n = " + n);
+
+	    // get e from the server
+	    debug("Receiving RSA exponent e from the server.");
+	    byte[] encodede;
+	    try {
+		encodede = CryptoUtilities.receive(in);
+	    }
+	    catch (IOException ex) {
+		System.out.println("Error receiving e from server.");
+		close();
+		return;
+	    }
+	    BigInteger e = new BigInteger(encodede);
+	    debug("Received e = " + e);
+
+	    RSA = new RSATool(n,e,debug);
 	}
-	BigInteger e = new BigInteger(encodede);
-	debug("Received e = " + e);
 
 
 	// encrypt the key and send to the server
 	debug("Encrypting the AES key with the server's RSA public key");
-	RSATool RSA = new RSATool(n,e,debug);
 
 	byte[] encryptedKey = null;
 	try {
@@ -163,6 +260,66 @@ public class Client
 	    return;
 	}
 	debug("Sent C = " + CryptoUtilities.toHexString(encryptedKey));
+
+	// remember the session for the next run
+	if (sessionFile != null) {
+	    try {
+		new SessionTicket(host, port, sessionId, CryptoUtilities.master_from_seed(raw)).save(sessionFile);
+	    }
+	    catch (IOException ex) {
+		System.out.println("Could not save the session ticket.");
+	    }
+	}
+
+	// remember a new key for the next run
+	if (keys != null && RSA != known) {
+	    keys.put(host, port, RSA);
+	    try {
+		keys.save(keyFile);
+	    }
+	    catch (IOException ex) {
+		System.out.println("Could not save the key cache.");
+	    }
+	}
+
+	// set up record protection for the rest of the connection
+	if (key != null)
+	    session = new CryptoSession(key, records);
+    }
+
+
+
+
+    /**
+     * Reconnects after the server has answered "busy" and starts the handshake
+     * again, waiting longer before each retry, see CryptoUtilities.retry_delay.
+     * Gives up after HANDSHAKE_RETRIES retries.
+     */
+    private void retryKey() {
+	// the server has closed the connection;  stdIn stays open for the file names
+	try {
+	    sock.close();
+	}
+	catch (IOException e) {
+	    System.out.println("Could not close socket.");
+	}
+
+	if (++retries > CryptoUtilities.HANDSHAKE_RETRIES) {
+	    System.out.println("Server is busy, giving up.");
+	    return;
+	}
+	long delay = CryptoUtilities.retry_delay(retries);
+	System.out.println("Server is busy, retrying in " + delay + " ms.");
+	try {
+	    Thread.sleep(delay);
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    return;
+	}
+
+	if (connect())
+	    getKey();
     }
 
 
@@ -178,10 +335,12 @@ public class Client
 	// get input file name
 	String infilename;
 	FileInputStream infile;
+	long size;
 	try {
 	    System.out.print("Please enter the source filename: ");
 	    infilename = stdIn.readLine();
 	    infile = new FileInputStream(infilename);
+	    size = new File(infilename).length();
 	}
 	catch (IOException e) {
 	    System.out.println ("Could not open source file");
@@ -205,7 +364,7 @@ public class Client
 	// send the output file name
 	try {
 	    debug("Sending output file name = " + outfilename);
-	    CryptoUtilities.encryptAndSend(outfilename.getBytes(),key,out);
+	    session.sealAndSend(outfilename.getBytes(),out);
 	}
 	catch (IOException e) {
 	    System.out.println("Error sending the output file name");
@@ -216,8 +375,8 @@ public class Client
 
 	// send the file size
 	try {
-	    debug("Sending file size = " + infile.available());
-	    CryptoUtilities.encryptAndSend(String.valueOf(infile.available()).getBytes(), key,out);	
+	    debug("Sending file size = " + size);
+	    session.sealAndSend(String.valueOf(size).getBytes(),out);	
 	}
 	catch (IOException e) {
 	    System.out.println("Error sending the file length");
@@ -229,16 +388,22 @@ public class Client
 
 	// append message digest, encrypt, send file
 	try {
-	    debug("Encrypting and sending file with MAC appended");
-	    // read input file into a byte array
-	    byte[] msg = new byte[infile.available()];
-	    int read_bytes = infile.read(msg);
-
-	    // append HMAC-SHA-1 message digest
-	    byte[] hashed_msg = CryptoUtilities.append_hash(msg,key);
+	    if (size > CryptoUtilities.stream_threshold(records)) {
+		// large files are streamed in chunks so memory use stays constant
+		debug("Encrypting and sending file as a stream of chunks with MACs appended");
+		long sent = session.encryptAndSendStream(infile,out);
+		debug("Sent " + sent + " bytes");
+	    }
+	    else {
+		debug("Encrypting and sending file in " + records + " record mode");
+		// read input file into a byte array
+		byte[] msg = new byte[(int) size];
+		int read_bytes = infile.read(msg);
 
-	    // encrypt anad send
-	    CryptoUtilities.encryptAndSend(hashed_msg,key,out);
+		// append HMAC-SHA-1 message digest and encrypt, or encrypt with AES-GCM, and send
+		session.sealAndSend(msg,out);
+	    }
+	    infile.close();
 	}
 	catch (IOException e) {
 	    System.out.println("Error sending encrypted file");
@@ -252,7 +417,7 @@ public class Client
 	boolean transferOK = false;
 	try {
 	    debug("Waiting for server acknowledgement");
-	    String ack = new String(CryptoUtilities.receiveAndDecrypt(key,in));
+	    String ack = new String(session.receiveAndOpen(in));
 
 	    debug("Got acknowledgement = " + ack);
 	    if (ack.compareTo("Passed") == 0) {
@@ -301,10 +466,13 @@ public class Client
      * Outputs usage instructions
      */
     public static void printUsage() {
-	System.out.println ("Usage: java Client hostname port#");
-	System.out.println("     or java Client debug hostname port#");
+	System.out.println ("Usage: java Client hostname port# [debug] [records gcm|cbc-etm|cbc-hmac] [session filename] [keys filename]");
 	System.out.println (" - hostname is a string identifying your server");
 	System.out.println (" - port is a positive integer identifying the port to connect to the server");
+	System.out.println (" - debug prints protocol messages");
+	System.out.println (" - records proposes a record protection mode to the server (default cbc-hmac)");
+	System.out.println (" - session keeps a ticket in the given file to resume the session on the next run");
+	System.out.println (" - keys caches the server's public key in the given file, so that it is not sent again");
     }
 
 
@@ -317,36 +485,44 @@ public class Client
     public static void main (String [] args)
     {
 	boolean setDebug = false;
+	String records = CryptoUtilities.RECORDS_CBC_HMAC;
+	String sessionFile = null;
+	String keyFile = null;
 
-	if (args.length < 2 || args.length > 3) {
+	if (args.length < 2) {
 	    printUsage();
 	    return;
 	}
 
-	// check if debug flag is being set
-	String ipaddress;
+	// check for the optional debug flag and ticket file
+	String ipaddress = args[0];
 	int port;
-	if (args.length == 3) {
-	    if (args[2].compareTo("debug") == 0) {
+	for (int i = 2; i < args.length; i++) {
+	    if (args[i].compareTo("debug") == 0) {
 		setDebug = true;
-		ipaddress = args[0];
-		port = Integer.parseInt(args[1]);
+	    }
+	    else if (args[i].compareTo("records") == 0 && i+1 < args.length
+		     && CryptoUtilities.record_mode(args[i+1]).equals(args[i+1])) {
+		records = args[++i];
+	    }
+	    else if (args[i].compareTo("session") == 0 && i+1 < args.length) {
+		sessionFile = args[++i];
+	    }
+	    else if (args[i].compareTo("keys") == 0 && i+1 < args.length) {
+		keyFile = args[++i];
 	    }
 	    else {
 		printUsage();
 		return;
 	    }
 	}
-	else {
-	    ipaddress = args[0];
-	    port = Integer.parseInt(args[1]);
-	}
 
 
 	// initialize client and socket connections
 	Client c;
 	try {
-	    c = new Client (ipaddress, port, setDebug);
+	    port = Integer.parseInt(args[1]);
+	    c = new Client (ipaddress, port, setDebug, records, sessionFile, keyFile);
 	}
 	catch (NumberFormatException e) {
 	    printUsage();
@@ -359,8 +535,9 @@ public class Client
 	c.getKey();
 
 
-	// do file transfer
-	c.sendFile();
+	// do file transfer, unless the handshake failed or the server stayed busy
+	if (c.session != null)
+	    c.sendFile();
 
 
 	// shut down the client
@@ -1,5 +1,6 @@
 import java.io.*;
 import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
 import java.security.*;
 import javax.crypto.*;
 import javax.crypto.spec.*;
@@ -29,6 +30,57 @@ public class CryptoUtilities {
     // Certainty value for probably primes
     public static final int CERTAINTY = 3;
 
+    // Files larger than this are streamed as a sequence of chunks (in bytes), see stream_threshold
+    public static final long STREAM_THRESHOLD = 1024 * 1024;
+
+    // Plaintext size of each streamed chunk (in bytes)
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    // Chunk header length:  4-byte sequence number and 1-byte trailer flag
+    public static final int CHUNK_HEADER_LEN = 5;
+
+    // Session ID and handshake nonce lengths for session resumption (in bytes)
+    public static final int SESSION_ID_LEN = 16;
+    public static final int NONCE_LEN = 16;
+
+    // Server's answer to the client's session ID:  a full RSA handshake follows, or the session is resumed
+    public static final String HANDSHAKE_FULL = "full";
+    public static final String HANDSHAKE_RESUME = "resume";
+
+    // Server's answer when it has no room for another full handshake:  the client
+    // reconnects after retry_delay, at most HANDSHAKE_RETRIES times
+    public static final String HANDSHAKE_BUSY = "busy";
+    public static final int HANDSHAKE_RETRIES = 5;
+
+    // Delay before the first retry of a busy handshake (in milliseconds)
+    public static final long RETRY_DELAY = 250;
+
+    // Server's answer to the client's key fingerprint:  the client's cached key is current, or n and e follow
+    public static final String PUBKEY_CACHED = "cached";
+    public static final String PUBKEY_SENT = "key";
+
+    // Record protection modes, as proposed by the client and confirmed by the server
+    public static final String RECORDS_CBC_HMAC = "cbc-hmac";
+    public static final String RECORDS_GCM = "gcm";
+    public static final String RECORDS_CBC_ETM = "cbc-etm";
+
+    // AES-GCM IV and authentication tag lengths (in bytes)
+    public static final int GCM_IV_LEN = 12;
+    public static final int GCM_TAG_LEN = 16;
+
+    // HMAC-SHA256 tag length of a cbc-etm record (in bytes)
+    public static final int ETM_MAC_LEN = 32;
+
+    // Messages are fed to AES-GCM in slices of this size (in bytes)
+    public static final int GCM_SLICE = 4096;
+
+    // CBC records of at least PARALLEL_CBC_MIN bytes may be decrypted on several cores, in segments of PARALLEL_CBC_SEGMENT bytes
+    public static final int PARALLEL_CBC_MIN = 256 * 1024;
+    public static final int PARALLEL_CBC_SEGMENT = 64 * 1024;
+
+    // source of handshake nonces
+    private static final SecureRandom NONCE_RANDOM = new SecureRandom();
+
 
     /**
      * Constructs a AES_KEY_LEN byte AES key from a given seed
@@ -59,6 +111,73 @@ public class CryptoUtilities {
 
 
 
+    /**
+     * Derives the master secret kept for resuming a session from the shared
+     * secret of its full handshake.  It is hashed differently from the session
+     * key, so a stored master secret does not reveal the traffic of the full
+     * handshake.
+     *
+     * @param seed shared secret of the full handshake (array of bytes)
+     * @return the master secret
+     */
+    public static byte[] master_from_seed(byte[] seed) {
+	try {
+	    MessageDigest sha1 = MessageDigest.getInstance("SHA1");
+	    sha1.update("master secret".getBytes());
+	    return sha1.digest(seed);
+	}
+	catch (NoSuchAlgorithmException e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+
+
+
+    /**
+     * Derives a fresh AES key for a resumed session from its master secret and
+     * the nonces both sides sent for this connection.
+     *
+     * @param master master secret of the session
+     * @param clientNonce the client's nonce
+     * @param serverNonce the server's nonce
+     * @return the resulting AES key
+     */
+    public static SecretKeySpec resumption_key(byte[] master, byte[] clientNonce, byte[] serverNonce) {
+	byte[] seed = new byte[master.length + clientNonce.length + serverNonce.length];
+	System.arraycopy(master, 0, seed, 0, master.length);
+	System.arraycopy(clientNonce, 0, seed, master.length, clientNonce.length);
+	System.arraycopy(serverNonce, 0, seed, master.length + clientNonce.length, serverNonce.length);
+	return key_from_seed(seed);
+    }
+
+
+
+    /**
+     * Generates a random handshake nonce of NONCE_LEN bytes.
+     */
+    public static byte[] nonce() {
+	byte[] nonce = new byte[NONCE_LEN];
+	NONCE_RANDOM.nextBytes(nonce);
+	return nonce;
+    }
+
+
+
+    /**
+     * Time to wait before the given retry of a handshake the server answered
+     * "busy":  RETRY_DELAY doubled for each earlier retry, plus up to as much
+     * again at random so that clients turned away together do not all come back
+     * together.
+     * @param attempt the retry, counting from 1
+     * @return the delay in milliseconds
+     */
+    public static long retry_delay(int attempt) {
+	long delay = RETRY_DELAY << Math.min(attempt - 1, 10);
+	return delay + ThreadLocalRandom.current().nextLong(delay);
+    }
+
+
+
     /**
      * Computes a HMAC-SHA1 message digest of a given message, appends it to the 
      * message, returns the output.
@@ -221,6 +340,33 @@ public class CryptoUtilities {
 
 
 
+    /**
+     * Returns the size above which a file is streamed in the given record mode.
+     * In AES-GCM mode any file larger than one chunk is streamed:  on Java 17,
+     * opening a 1 MB GCM record runs at about 36 MB/s even on a warmed JVM,
+     * against about 2600 MB/s for records of CHUNK_SIZE (RecordBenchmark).
+     * Java 21 opens both sizes at the same speed.
+     */
+    public static long stream_threshold(String mode)
+    {
+	return mode.equals(RECORDS_GCM) ? CHUNK_SIZE : STREAM_THRESHOLD;
+    }
+
+
+
+    /**
+     * Returns the record mode the server uses for a client's proposal:  the
+     * proposed mode if it is supported, otherwise AES-CBC with HMAC-SHA1.
+     */
+    public static String record_mode(String proposed)
+    {
+	if (proposed.equals(RECORDS_GCM) || proposed.equals(RECORDS_CBC_ETM))
+	    return proposed;
+	return RECORDS_CBC_HMAC;
+    }
+
+
+
     /**
      * Writes the given message to the supplied stream.
      *
@@ -229,15 +375,30 @@ public class CryptoUtilities {
      * @throws IOException
      */
     public static void send(byte[] message, DataOutputStream out) throws IOException
+    {
+	queue(message, out);
+
+	// flush the stream
+	out.flush();
+    }
+
+
+
+    /**
+     * Writes the given message to the supplied stream without flushing it, so
+     * that it goes out in the same flight as the next message sent.
+     *
+     * @param message  the message (in bytes)
+     * @param out  the output stream
+     * @throws IOException
+     */
+    public static void queue(byte[] message, DataOutputStream out) throws IOException
     {
 	// send the length of the encrypted message
 	out.writeInt(message.length);
 
 	// send the encrypted message bytes
 	out.write(message);
-
-	// flush the stream
-	out.flush();
     }
 
 
@@ -263,6 +424,8 @@ public class CryptoUtilities {
 	int total = 0;
 	do {
 	    i = in.read(message, total, size-total);
+	    if (i < 0)
+		throw new EOFException("Connection closed after " + total + " of " + size + " bytes");
 	    total += i;
 	} while (total != size);
 
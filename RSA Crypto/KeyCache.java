@@ -0,0 +1,150 @@
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * This class is the client's cache of server RSA public keys.  Keys are
+ * indexed by their fingerprint, and each server maps to the fingerprint of the
+ * key it sent last, so that a reconnecting client can tell the server which key
+ * it already holds instead of receiving n and e again.  The cache is kept in a
+ * file between runs.
+ *
+ * @author Pujan Bhatta
+ * @version 1.0
+ */
+public class KeyCache
+{
+    private final Map<ByteBuffer, RSATool> keys = new HashMap<ByteBuffer, RSATool>();  // public keys by fingerprint
+    private final Map<String, ByteBuffer> servers = new HashMap<String, ByteBuffer>();  // key fingerprints by "host:port"
+    private final boolean debug;
+
+
+
+    /**
+     * Constructor for an empty cache.
+     * @param setDebug debug flag for the RSA instances created by the cache
+     */
+    public KeyCache (boolean setDebug)
+    {
+	debug = setDebug;
+    }
+
+
+
+    /**
+     * Loads a cache saved by save().
+     * @param filename name of the cache file
+     * @param setDebug debug flag for the RSA instances created by the cache
+     * @return the cache, empty if the file is missing, unreadable or corrupt
+     */
+    public static KeyCache load (String filename, boolean setDebug)
+    {
+	KeyCache cache = new KeyCache(setDebug);
+	try {
+	    // the file is small, so it is read whole and every length checked against what is left of it
+	    DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(Paths.get(filename))));
+	    int count = in.readInt();
+	    for (int i = 0; i < count; i++) {
+		String host = new String(field(in));
+		int port = in.readInt();
+		BigInteger n = new BigInteger(field(in));
+		BigInteger e = new BigInteger(field(in));
+		if (n.signum() <= 0 || e.signum() <= 0)
+		    throw new IOException("Bad key cache " + filename);
+		cache.put(host, port, new RSATool(n, e, setDebug));
+	    }
+	}
+	catch (IOException e) {
+	    // missing or corrupt:  start over with an empty cache
+	    return new KeyCache(setDebug);
+	}
+	catch (RuntimeException e) {
+	    return new KeyCache(setDebug);
+	}
+	return cache;
+    }
+
+
+
+    /**
+     * Reads one length-prefixed field of a cache file.
+     * @throws IOException if the length is negative or beyond the end of the file
+     */
+    private static byte[] field (DataInputStream in) throws IOException
+    {
+	int size = in.readInt();
+	if (size < 0 || size > in.available())
+	    throw new IOException("Bad key cache");
+	byte[] field = new byte[size];
+	in.readFully(field);
+	return field;
+    }
+
+
+
+    /**
+     * Saves the cache, one entry per server, replacing the previous file.  Keys
+     * no server refers to any more are dropped.  The cache is written to a
+     * temporary file and moved into place, so that a crash or another client
+     * saving at the same time never leaves a torn file.
+     * @param filename name of the cache file
+     * @throws IOException if the file cannot be written
+     */
+    public void save (String filename) throws IOException
+    {
+	Path cachefile = Paths.get(filename).toAbsolutePath();
+	Path temp = Files.createTempFile(cachefile.getParent(), cachefile.getFileName().toString(), ".tmp");
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+	try {
+	    out.writeInt(servers.size());
+	    for (Map.Entry<String, ByteBuffer> server : servers.entrySet()) {
+		String name = server.getKey();
+		RSATool key = keys.get(server.getValue());
+		int colon = name.lastIndexOf(':');
+		CryptoUtilities.queue(name.substring(0, colon).getBytes(), out);
+		out.writeInt(Integer.parseInt(name.substring(colon + 1)));
+		CryptoUtilities.queue(key.get_n().toByteArray(), out);
+		CryptoUtilities.queue(key.get_e().toByteArray(), out);
+	    }
+	    out.close();
+	    Files.move(temp, cachefile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	finally {
+	    out.close();
+	    Files.deleteIfExists(temp);
+	}
+    }
+
+
+
+    /**
+     * Returns the key the given server sent last.
+     * @param host server as given to the client
+     * @param port server port
+     * @return an RSA instance for encryption, or null if the server is not in the cache
+     */
+    public RSATool lookup (String host, int port)
+    {
+	ByteBuffer fingerprint = servers.get(host + ":" + port);
+	return fingerprint != null ? keys.get(fingerprint) : null;
+    }
+
+
+
+    /**
+     * Records the key sent by a server, replacing its previous key.
+     * @param host server as given to the client
+     * @param port server port
+     * @param key RSA instance holding the server's public key
+     */
+    public void put (String host, int port, RSATool key)
+    {
+	ByteBuffer fingerprint = ByteBuffer.wrap(key.fingerprint());
+	keys.put(fingerprint, key);
+	ByteBuffer previous = servers.put(host + ":" + port, fingerprint);
+	if (previous != null && !previous.equals(fingerprint) && !servers.containsValue(previous))
+	    keys.remove(previous);
+    }
+}
@@ -0,0 +1,721 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * This class is one client connection of the NIO server.  It runs the same
+ * protocol as ServerThread, but as a state machine driven by its event loop:
+ * bytes are read into the loop's buffer as they arrive and cut into
+ * length-prefixed messages as framed by CryptoUtilities.send, and each complete
+ * message moves the connection on to its next state.  Replies are queued and
+ * written whenever the socket can take them.  All methods run on the loop's
+ * thread, except for the record work handed to the server's workers, during
+ * which the connection is left alone.
+ *
+ * @author Pujan Bhatta
+ * @version 1.0
+ */
+public class NioConnection
+{
+    // protocol states, in order
+    private static final int HELLO = 0;       // waiting for record mode, session ID, key fingerprint and nonce
+    private static final int KEY = 1;         // waiting for the RSA-encrypted AES key
+    private static final int DECRYPTING = 2;  // AES key being decrypted on the handshake pool
+    private static final int NAME = 3;        // waiting for the output file name
+    private static final int SIZE = 4;        // waiting for the file size
+    private static final int FILE = 5;        // waiting for the file as a single record
+    private static final int STREAM = 6;      // receiving the file as a stream of chunks
+    private static final int DONE = 7;        // acknowledgement sent, closing once it is written
+
+    // largest message accepted in each state:  a hello field (record mode, session ID, key fingerprint
+    // or nonce), one record of a streamed file, and a file record just under the streaming threshold;
+    // the encrypted key is limited to one RSA block.  Records carry an IV and MAC on top.
+    private static final int HELLO_FIELD_LEN = 64;
+    private static final int CHUNK_RECORD_LEN = CryptoUtilities.CHUNK_HEADER_LEN + CryptoUtilities.CHUNK_SIZE + 1024;
+    private static final int MAX_MESSAGE_LEN = (int) CryptoUtilities.STREAM_THRESHOLD + 1024;
+
+    // first allocation for a message body, which then grows as its bytes arrive
+    private static final int INITIAL_BODY_LEN = 8 * 1024;
+
+    // longest time, in milliseconds, a client may leave a message or file unfinished without sending anything
+    private static final long STALL_TIMEOUT = 30 * 1000L;
+
+    private final SocketChannel channel;
+    private final Server parent;
+    private final NioServer server;
+    private final NioServer.EventLoop loop;
+    private final int idnum;  //The client's id number.
+    private final RSATool RSA;  // server key when the client connected
+    private SelectionKey selection;
+    private boolean closed = false;
+    private long lastActive;  // time bytes were last read from or written to the client
+    private boolean working = false;  // a record is with the server's workers
+
+    // message being read:  4-byte length, then the body
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    private byte[] body;
+    private int bodyLen;
+    private int bodySize;  // length announced in the header
+    private final ArrayDeque<byte[]> messages = new ArrayDeque<byte[]>();  // complete messages not yet handled
+
+    // replies not yet written, and the pooled buffer they are written from
+    private final ArrayDeque<ByteBuffer> replies = new ArrayDeque<ByteBuffer>();
+    private ByteBuffer outBuffer;
+
+    private int state = HELLO;
+    private String records;  // record protection mode of the session
+    private byte[] sessionId;
+    private CryptoSession session;
+    private String outfilename;
+    private File partfile;  // stream being received, moved into place once verified
+    private FileOutputStream outfile;
+    private CryptoSession.ChunkStream chunks;
+
+
+
+    /**
+     * Constructor.
+     * @param channel the client's non-blocking channel
+     * @param parent the server, for the session cache and handshake pool
+     * @param server the NIO server, told when the connection closes
+     * @param loop the event loop serving the connection
+     * @param id ID Number.
+     * @param RSA_in the server's current RSA key
+     */
+    public NioConnection (SocketChannel channel, Server parent, NioServer server, NioServer.EventLoop loop, int id, RSATool RSA_in)
+    {
+	this.channel = channel;
+	this.parent = parent;
+	this.server = server;
+	this.loop = loop;
+	idnum = id;
+	RSA = RSA_in;
+    }
+
+
+
+    /**
+     * Utility for printing protocol messages
+     * @param s protocol message to be printed
+     */
+    private void debug(String s) {
+	if(parent.getDebug())
+	    System.out.println("Debug Server: " + s);
+    }
+
+
+
+    /**
+     * Getter for id number.
+     * @return ID Number
+     */
+    public int getID ()
+    {
+	return idnum;
+    }
+
+
+
+    /**
+     * Registers the connection with its loop's selector to wait for the client's hello.
+     */
+    void register (Selector selector)
+    {
+	try {
+	    selection = channel.register(selector, SelectionKey.OP_READ, this);
+	    lastActive = System.currentTimeMillis();
+	}
+	catch (IOException e) {
+	    System.out.println("Could not register client connection.");
+	    close();
+	}
+    }
+
+
+
+    /**
+     * Reads what the client has sent into the loop's buffer, cuts it into
+     * messages and handles every complete message.
+     * @param buffer the loop's read buffer, empty on entry and on return
+     */
+    void readable (ByteBuffer buffer)
+    {
+	try {
+	    int n = channel.read(buffer);
+	    if (n < 0) {
+		// the client hung up early
+		close();
+		return;
+	    }
+	    if (n > 0)
+		lastActive = System.currentTimeMillis();
+	    buffer.flip();
+	    frame(buffer);
+	    buffer.clear();
+	}
+	catch (IOException e) {
+	    buffer.clear();
+	    System.out.println("Error receiving from client " + idnum + ":  " + e.getMessage());
+	    close();
+	}
+    }
+
+
+
+    /**
+     * Writes pending replies once the socket can take more.
+     */
+    void writable ()
+    {
+	try {
+	    flush();
+	}
+	catch (IOException e) {
+	    System.out.println("Error sending to client " + idnum + ".");
+	    close();
+	}
+    }
+
+
+
+    /**
+     * Cuts the bytes read into messages, keeping a partial message for the next
+     * read, and handles each message as it completes so that the next one is
+     * checked against the limit of the state it arrives in.  A message body is
+     * grown as its bytes arrive rather than allocated at its announced length.
+     */
+    private void frame (ByteBuffer in) throws IOException
+    {
+	while (!closed) {
+	    if (body == null) {
+		while (header.hasRemaining() && in.hasRemaining())
+		    header.put(in.get());
+		if (header.hasRemaining())
+		    return;
+
+		int size = header.getInt(0);
+		if (size < 0 || size > maxMessageLen())
+		    throw new IOException("message of " + size + " bytes");
+		body = new byte[Math.min(size, INITIAL_BODY_LEN)];
+		bodyLen = 0;
+		bodySize = size;
+	    }
+
+	    int n = Math.min(in.remaining(), bodySize - bodyLen);
+	    if (bodyLen + n > body.length)
+		body = Arrays.copyOf(body, Math.min(bodySize, Math.max(2 * body.length, bodyLen + n)));
+	    in.get(body, bodyLen, n);
+	    bodyLen += n;
+	    if (bodyLen < bodySize)
+		return;
+
+	    messages.add(body);
+	    body = null;
+	    header.clear();
+	    handle();
+	}
+    }
+
+
+
+    /**
+     * Returns the largest message the client may send next.  Until the AES key
+     * is decrypted only the short hello fields and one RSA block are accepted;
+     * records sent right behind the key wait while it is being decrypted.
+     */
+    private int maxMessageLen ()
+    {
+	switch (state) {
+	case HELLO:
+	    return HELLO_FIELD_LEN;
+	case KEY:
+	    return RSA.get_n().bitLength() / 8 + 1;
+	case STREAM:
+	    return CHUNK_RECORD_LEN;
+	case DONE:
+	    return -1;
+	default:
+	    return MAX_MESSAGE_LEN;
+	}
+    }
+
+
+
+    /**
+     * Handles the complete messages in order, for as long as the current state
+     * has what it needs.
+     */
+    private void handle () throws IOException
+    {
+	while (!closed && !working && state != DECRYPTING && state != DONE
+	       && messages.size() >= (state == HELLO ? 4 : 1)) {
+	    switch (state) {
+	    case HELLO:
+		hello(messages.poll(), messages.poll(), messages.poll(), messages.poll());
+		break;
+	    case KEY:
+		decryptKey(messages.poll());
+		break;
+	    case NAME:
+		receiveName(messages.poll());
+		break;
+	    case SIZE:
+		receiveSize(messages.poll());
+		break;
+	    case FILE:
+		receiveFile(messages.poll());
+		break;
+	    case STREAM:
+		receiveChunk(messages.poll());
+		break;
+	    }
+	}
+    }
+
+
+
+    /**
+     * Answers the client's hello as ServerThread.getKey does:  resumes a cached
+     * session, or sends a new session ID and the public key unless the client
+     * has it cached.  A new session is answered "busy" if the handshake pool is
+     * full.
+     */
+    private void hello (byte[] mode, byte[] clientId, byte[] clientKey, byte[] clientNonce) throws IOException
+    {
+	debug("Starting key transport");
+	records = CryptoUtilities.record_mode(new String(mode));
+	queue(records.getBytes());
+
+	SessionCache sessions = parent.getSessions();
+	byte[] cached = clientId.length > 0 ? sessions.get(clientId) : null;
+	if (cached != null) {
+	    debug("Resuming session " + CryptoUtilities.toHexString(clientId));
+	    byte[] serverNonce = CryptoUtilities.nonce();
+	    queue(CryptoUtilities.HANDSHAKE_RESUME.getBytes());
+	    queue(serverNonce);
+	    flush();
+	    SecretKeySpec key = CryptoUtilities.resumption_key(cached, clientNonce, serverNonce);
+	    debug("AES key = " + CryptoUtilities.toHexString(key.getEncoded()));
+	    session = new CryptoSession(key, records);
+	    state = NAME;
+	    return;
+	}
+
+	// a new session needs RSA decryption:  turn the client away if the handshake pool is full
+	if (!parent.admitHandshake()) {
+	    System.out.println("Handshake pool full, client " + idnum + " told to retry.");
+	    queue(CryptoUtilities.HANDSHAKE_BUSY.getBytes());
+	    state = DONE;
+	    flush();
+	    return;
+	}
+
+	sessionId = sessions.newId();
+	queue(CryptoUtilities.HANDSHAKE_FULL.getBytes());
+	queue(sessionId);
+	if (Arrays.equals(clientKey, RSA.fingerprint())) {
+	    debug("Client has the public key cached");
+	    queue(CryptoUtilities.PUBKEY_CACHED.getBytes());
+	}
+	else {
+	    debug("Sending n and e to client");
+	    queue(CryptoUtilities.PUBKEY_SENT.getBytes());
+	    queue(RSA.get_n().toByteArray());
+	    queue(RSA.get_e().toByteArray());
+	}
+	flush();
+	state = KEY;
+    }
+
+
+
+    /**
+     * Drops the connection if its client has left a message, a reply or a
+     * streamed file unfinished for STALL_TIMEOUT.  Idle connections that hold
+     * nothing, and connections waiting on the server's own work, are left
+     * alone.  Called periodically by the event loop.
+     * @param now the current time in milliseconds
+     */
+    void checkDeadline (long now)
+    {
+	if (working || state == DECRYPTING)
+	    return;
+	if (now - lastActive > STALL_TIMEOUT
+		 && (body != null || header.position() > 0 || outBuffer != null
+		     || (state == HELLO && !messages.isEmpty()) || state == STREAM)) {
+	    System.out.println("Client " + idnum + " stalled, closing the connection.");
+	    close();
+	}
+    }
+
+
+
+    /**
+     * Hands the encrypted AES key to the handshake pool, where it waits for a
+     * free slot if the pool is full.  The connection stops reading until the
+     * key is back, so that records the client sends right behind it wait in
+     * the socket.
+     */
+    private void decryptKey (final byte[] encryptedKey)
+    {
+	debug("Received C = " + CryptoUtilities.toHexString(encryptedKey));
+	state = DECRYPTING;
+	selection.interestOps(selection.interestOps() & ~SelectionKey.OP_READ);
+
+	Runnable work = new Runnable() {
+		public void run () {
+		    byte[] decrypted;
+		    try {
+			decrypted = RSA.decrypt(encryptedKey);
+		    }
+		    catch (RuntimeException e) {
+			System.out.println(e);
+			decrypted = null;
+		    }
+		    final byte[] encodedKey = decrypted;
+		    loop.execute(new Runnable() {
+			    public void run () {
+				keyDecrypted(encodedKey);
+			    }
+			});
+		}
+	    };
+	try {
+	    parent.handshakeAsync(work);
+	}
+	catch (RejectedExecutionException e) {
+	    /* Handshake pool is shut down, probably because the server is shutting down */
+	    close();
+	}
+    }
+
+
+
+    /**
+     * Sets up record protection once the AES key has been decrypted, and goes on
+     * with the messages that arrived meanwhile.
+     * @param encodedKey the decrypted key, or null if decryption failed
+     */
+    private void keyDecrypted (byte[] encodedKey)
+    {
+	if (closed)
+	    return;
+	if (encodedKey == null || encodedKey.length < CryptoUtilities.AES_KEY_LEN) {
+	    System.out.println("Error decrypting the key from client " + idnum + ".");
+	    close();
+	    return;
+	}
+
+	byte[] raw = Arrays.copyOf(encodedKey, CryptoUtilities.AES_KEY_LEN);
+	debug("AES key = " + CryptoUtilities.toHexString(raw));
+	parent.getSessions().put(sessionId, CryptoUtilities.master_from_seed(raw));
+	session = new CryptoSession(new SecretKeySpec(raw, "AES"), records);
+	state = NAME;
+
+	selection.interestOps(selection.interestOps() | SelectionKey.OP_READ);
+	try {
+	    handle();
+	}
+	catch (IOException e) {
+	    System.out.println("Error receiving from client " + idnum + ":  " + e.getMessage());
+	    close();
+	}
+    }
+
+
+
+    private void receiveName (byte[] record)
+    {
+	byte[] name = session.open(record);
+	if (name == null) {
+	    System.out.println("Error receiving the output file name");
+	    close();
+	    return;
+	}
+	outfilename = new String(name);
+	System.out.println("Output file: " + outfilename);
+	state = SIZE;
+    }
+
+
+
+    private void receiveSize (byte[] record) throws IOException
+    {
+	byte[] message = session.open(record);
+	long size;
+	try {
+	    size = Long.parseLong(new String(message));
+	}
+	catch (RuntimeException e) {
+	    // null or not a number
+	    System.out.println("Error receiving the file size");
+	    close();
+	    return;
+	}
+	System.out.println("File size = " + size);
+
+	// large files arrive as a stream of chunks and are written as they are verified
+	if (size > CryptoUtilities.stream_threshold(records)) {
+	    debug("Receiving and decrypting file as a stream of chunks");
+	    partfile = new File(outfilename + ".part");
+	    outfile = new FileOutputStream(partfile);
+	    chunks = session.new ChunkStream(outfile, size);
+	    state = STREAM;
+	}
+	else {
+	    debug("Receiving file in " + records + " record mode");
+	    state = FILE;
+	}
+    }
+
+
+
+    /**
+     * Checks and writes a file sent as a single record on a worker, then
+     * acknowledges it.
+     */
+    private void receiveFile (final byte[] record)
+    {
+	offload(new Callable<Boolean>() {
+		public Boolean call () throws IOException {
+		    byte[] plaintext = session.open(record);
+		    if (plaintext == null) {
+			System.out.println("Integrity check failed.  File not written.");
+			return false;
+		    }
+
+		    System.out.println("Message digest OK. Writing file");
+		    FileOutputStream file = new FileOutputStream(outfilename);
+		    try {
+			file.write(plaintext);
+		    }
+		    finally {
+			file.close();
+		    }
+		    return true;
+		}
+	    });
+    }
+
+
+
+    /**
+     * Checks and writes the next chunk of a streamed file on a worker.  Once the
+     * trailer has arrived the file is moved into place or discarded, and
+     * acknowledged.
+     */
+    private void receiveChunk (final byte[] record)
+    {
+	offload(new Callable<Boolean>() {
+		public Boolean call () throws IOException {
+		    if (chunks.next(session.open(record)))
+			return null;
+
+		    outfile.close();
+		    outfile = null;
+		    boolean fileOK = chunks.verified();
+		    if (fileOK) {
+			debug("Message digests OK.  Writing file.");
+			Files.move(partfile.toPath(), Paths.get(outfilename), StandardCopyOption.REPLACE_EXISTING);
+		    }
+		    else {
+			System.out.println("Integrity check failed.  File not written.");
+			partfile.delete();
+		    }
+		    partfile = null;
+		    return fileOK;
+		}
+	    });
+    }
+
+
+
+    /**
+     * Hands record work to the server's workers, so that record decryption and
+     * file writes never hold up the event loop.  The connection stops reading
+     * until the work is done, which keeps its records in order, and then
+     * acknowledges the file or goes on with the messages that arrived meanwhile.
+     * @param work returns whether the file checked out, or null if more records are expected
+     */
+    private void offload (final Callable<Boolean> work)
+    {
+	working = true;
+	selection.interestOps(selection.interestOps() & ~SelectionKey.OP_READ);
+
+	Runnable task = new Runnable() {
+		public void run () {
+		    Boolean result = null;
+		    Exception error = null;
+		    try {
+			result = work.call();
+		    }
+		    catch (Exception e) {
+			error = e;
+		    }
+		    final Boolean fileOK = result;
+		    final Exception failure = error;
+		    loop.execute(new Runnable() {
+			    public void run () {
+				recordDone(fileOK, failure);
+			    }
+			});
+		}
+	    };
+	try {
+	    server.offload(task);
+	}
+	catch (RejectedExecutionException e) {
+	    /* Workers are shut down, probably because the server is shutting down */
+	    close();
+	}
+    }
+
+
+
+    /**
+     * Goes on once a worker has finished with a record.
+     * @param fileOK whether the file checked out, or null if more records are expected
+     * @param error what went wrong writing the file, or null
+     */
+    private void recordDone (Boolean fileOK, Exception error)
+    {
+	working = false;
+	if (closed)
+	    return;
+	if (error != null) {
+	    System.out.println("Error writing the file from client " + idnum + ":  " + error);
+	    close();
+	    return;
+	}
+	try {
+	    if (fileOK != null) {
+		acknowledge(fileOK);
+		return;
+	    }
+	    selection.interestOps(selection.interestOps() | SelectionKey.OP_READ);
+	    handle();
+	}
+	catch (IOException e) {
+	    System.out.println("Error receiving from client " + idnum + ":  " + e.getMessage());
+	    close();
+	}
+    }
+
+
+
+    /**
+     * Sends the "Passed" or "Failed" acknowledgement, closing the connection once
+     * it has been written.
+     */
+    private void acknowledge (boolean fileOK) throws IOException
+    {
+	String ack = fileOK ? "Passed" : "Failed";
+	debug("Sending \"" + ack + "\" acknowledgement.");
+	queue(session.seal(ack.getBytes()));
+	state = DONE;
+	flush();
+	if (fileOK)
+	    System.out.println("File written successfully.");
+    }
+
+
+
+    /**
+     * Queues a message with its length, as CryptoUtilities.queue does.
+     */
+    private void queue (byte[] message)
+    {
+	ByteBuffer framed = ByteBuffer.allocate(4 + message.length);
+	framed.putInt(message.length);
+	framed.put(message);
+	framed.flip();
+	replies.add(framed);
+    }
+
+
+
+    /**
+     * Writes as much of the queued replies as the socket takes, through a pooled
+     * direct buffer.  Whatever is left is written when the socket becomes
+     * writable again.  Once everything is written the buffer goes back to the
+     * pool, and after the acknowledgement the connection is closed.
+     */
+    private void flush () throws IOException
+    {
+	if (outBuffer == null)
+	    outBuffer = loop.buffers().take();
+
+	while (true) {
+	    while (!replies.isEmpty() && outBuffer.hasRemaining()) {
+		ByteBuffer reply = replies.peek();
+		int n = Math.min(reply.remaining(), outBuffer.remaining());
+		ByteBuffer part = reply.duplicate();
+		part.limit(reply.position() + n);
+		outBuffer.put(part);
+		reply.position(reply.position() + n);
+		if (!reply.hasRemaining())
+		    replies.poll();
+	    }
+
+	    outBuffer.flip();
+	    if (!outBuffer.hasRemaining())
+		break;
+	    if (channel.write(outBuffer) > 0)
+		lastActive = System.currentTimeMillis();
+	    boolean full = outBuffer.hasRemaining();
+	    outBuffer.compact();
+	    if (full) {
+		selection.interestOps(selection.interestOps() | SelectionKey.OP_WRITE);
+		return;
+	    }
+	}
+
+	// everything written
+	loop.buffers().give(outBuffer);
+	outBuffer = null;
+	selection.interestOps(selection.interestOps() & ~SelectionKey.OP_WRITE);
+	if (state == DONE)
+	    close();
+    }
+
+
+
+    /**
+     * Shuts down the connection, discarding a partly received stream.
+     */
+    public void close ()
+    {
+	if (closed)
+	    return;
+	closed = true;
+
+	if (selection != null)
+	    selection.cancel();
+	try {
+	    channel.close();
+	}
+	catch (IOException e) {
+	    System.out.println ("Could not close socket.");
+	}
+
+	if (outfile != null) {
+	    try {
+		outfile.close();
+	    }
+	    catch (IOException e) {
+		System.out.println("Error closing output file.");
+	    }
+	    partfile.delete();
+	}
+	if (outBuffer != null) {
+	    loop.buffers().give(outBuffer);
+	    outBuffer = null;
+	}
+	server.closed(this);
+    }
+}
@@ -0,0 +1,276 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class serves clients with non-blocking I/O instead of a thread per
+ * client.  A small number of event loop threads each run a Selector over their
+ * share of the connections, and each connection runs the same protocol as
+ * ServerThread as a state machine, see NioConnection.  The first loop also
+ * accepts new connections and hands them out in turn.  RSA decryption of the
+ * clients' keys runs on the server's handshake pool, and decryption of file
+ * records and file writes run on a pool of workers, so that they never hold
+ * up a loop.
+ *
+ * @author Pujan Bhatta
+ * @version 1.0
+ */
+public class NioServer
+{
+    // size of the pooled direct buffers used for socket reads and writes
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // most write buffers each event loop keeps for reuse
+    private static final int POOLED_BUFFERS = 64;
+
+    // how often, in milliseconds, each event loop drops connections whose client has stalled
+    private static final long DEADLINE_CHECK_INTERVAL = 1000;
+
+    private final Server parent;
+    private final ServerSocketChannel acceptor;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;  // decrypts and writes received files
+    private final AtomicInteger connections = new AtomicInteger();  // open connections
+    private volatile boolean closed = false;
+    private int next = 0;  // loop given the next connection
+
+
+
+    /**
+     * One event loop:  a Selector, the connections registered with it and the
+     * tasks other threads have handed to it.  Everything about a connection
+     * happens on the thread running its loop.
+     */
+    class EventLoop implements Runnable, Executor
+    {
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final BufferPool buffers = new BufferPool(BUFFER_SIZE, POOLED_BUFFERS);
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);  // shared by the loop's connections
+
+
+
+	EventLoop () throws IOException
+	{
+	    selector = Selector.open();
+	}
+
+
+
+	/**
+	 * Runs the task on the loop's thread, waking the loop up if it is waiting.
+	 */
+	public void execute (Runnable task)
+	{
+	    tasks.add(task);
+	    selector.wakeup();
+	}
+
+
+
+	BufferPool buffers ()
+	{
+	    return buffers;
+	}
+
+
+
+	public void run ()
+	{
+	    long nextCheck = System.currentTimeMillis() + DEADLINE_CHECK_INTERVAL;
+	    while (!closed) {
+		try {
+		    selector.select(DEADLINE_CHECK_INTERVAL);
+		}
+		catch (IOException e) {
+		    System.out.println("Error waiting for network events.");
+		    break;
+		}
+
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+		    try {
+			task.run();
+		    }
+		    catch (RuntimeException e) {
+			System.out.println("Error in event loop task:  " + e);
+		    }
+		}
+
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+		    SelectionKey key = keys.next();
+		    keys.remove();
+		    if (!key.isValid())
+			continue;
+
+		    if (key.isAcceptable()) {
+			accept();
+			continue;
+		    }
+		    // a fault in one connection closes that connection only, not the loop
+		    NioConnection connection = (NioConnection) key.attachment();
+		    try {
+			if (key.isReadable())
+			    connection.readable(readBuffer);
+			if (key.isValid() && key.isWritable())
+			    connection.writable();
+		    }
+		    catch (RuntimeException e) {
+			readBuffer.clear();
+			System.out.println("Error serving client " + connection.getID() + ":  " + e);
+			connection.close();
+		    }
+		}
+
+		long now = System.currentTimeMillis();
+		if (now >= nextCheck) {
+		    for (SelectionKey key : selector.keys())
+			if (key.attachment() instanceof NioConnection)
+			    ((NioConnection) key.attachment()).checkDeadline(now);
+		    nextCheck = now + DEADLINE_CHECK_INTERVAL;
+		}
+	    }
+
+	    // shutting down:  drop every connection of this loop
+	    for (SelectionKey key : selector.keys())
+		if (key.attachment() instanceof NioConnection)
+		    ((NioConnection) key.attachment()).close();
+	    try {
+		selector.close();
+	    }
+	    catch (IOException e) {
+		System.out.println("Could not close selector.");
+	    }
+	}
+    }
+
+
+
+    /**
+     * Constructor, sets up the event loops.
+     * @param parent the server, for the RSA key, session cache and handshake pool
+     * @param acceptor the server's listening channel
+     * @param threads number of event loop threads
+     * @throws IOException if a selector cannot be opened
+     */
+    public NioServer (Server parent, ServerSocketChannel acceptor, int threads) throws IOException
+    {
+	this.parent = parent;
+	this.acceptor = acceptor;
+	loops = new EventLoop[threads];
+	for (int i = 0; i < threads; i++)
+	    loops[i] = new EventLoop();
+	workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+		private int count = 0;
+		public Thread newThread (Runnable r) {
+		    Thread t = new Thread(r, "NIO worker " + count++);
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+    }
+
+
+
+    /**
+     * Runs a connection's record work, which may block on the disk, on the
+     * worker pool.
+     * @throws RejectedExecutionException if the server is shutting down
+     */
+    void offload (Runnable work)
+    {
+	workers.execute(work);
+    }
+
+
+
+    /**
+     * Serves clients until close() is called.  The first event loop, which also
+     * accepts connections, runs on the calling thread.
+     * @throws IOException if the listening channel cannot be registered
+     */
+    public void run () throws IOException
+    {
+	acceptor.configureBlocking(false);
+	acceptor.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+
+	for (int i = 1; i < loops.length; i++) {
+	    Thread t = new Thread(loops[i], "NIO loop " + i);
+	    t.setDaemon(true);
+	    t.start();
+	}
+	loops[0].run();
+    }
+
+
+
+    /**
+     * Accepts every pending connection and hands each to the next event loop.
+     */
+    private void accept ()
+    {
+	while (true) {
+	    final SocketChannel channel;
+	    try {
+		channel = acceptor.accept();
+		if (channel == null)
+		    return;
+		channel.configureBlocking(false);
+		// messages are flushed at the end of each flight, so Nagle's algorithm only adds delay
+		channel.socket().setTcpNoDelay(true);
+	    }
+	    catch (IOException e) {
+		/* Server channel is closed, probably because the server is shutting down */
+		return;
+	    }
+
+	    System.out.println ("Client on machine " + channel.socket().getInetAddress().getHostAddress() + " has connected on port " + channel.socket().getLocalPort() + ".");
+	    final EventLoop loop = loops[next++ % loops.length];
+	    final NioConnection connection = new NioConnection(channel, parent, this, loop, parent.nextClientID(), parent.getRSA());
+	    connections.incrementAndGet();
+	    loop.execute(new Runnable() {
+		    public void run () {
+			connection.register(loop.selector);
+		    }
+		});
+	}
+    }
+
+
+
+    /**
+     * Called by a connection once it has been closed.
+     */
+    void closed (NioConnection connection)
+    {
+	connections.decrementAndGet();
+	System.out.println ("Killing Client " + connection.getID() + ".");
+    }
+
+
+
+    /**
+     * Number of open connections.
+     */
+    public int connections ()
+    {
+	return connections.get();
+    }
+
+
+
+    /**
+     * Stops the event loops, closing every connection.
+     */
+    public void close ()
+    {
+	closed = true;
+	for (EventLoop loop : loops)
+	    loop.selector.wakeup();
+	workers.shutdownNow();
+    }
+}
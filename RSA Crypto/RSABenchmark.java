@@ -0,0 +1,274 @@
+import java.io.*;
+import java.lang.management.*;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Benchmarks for RSATool.  Each operation is warmed up and then run for a fixed
+ * time on one thread, and the harness reports throughput together with the
+ * allocation rate and garbage collections seen during the run, so regressions
+ * in either speed or garbage show up.  Allocation is summed over every thread,
+ * since key generation searches on SafePrimeGenerator's threads and CRT
+ * decryption may run its halves on RSATool's pool.
+ *
+ * This is a plain main class rather than a JMH benchmark because the project
+ * has no Maven or Gradle build to pull JMH in;  like the rest of the project it
+ * compiles with javac alone.  It covers what JMH would:  a warm-up run before
+ * each measurement, results kept in a volatile field so the JIT cannot drop the
+ * work, and allocation and GC figures in place of -prof gc.  It runs everything
+ * in one JVM, so results for later benchmarks may differ from a forked run.
+ *
+ *   keygen   - new RSATool(false), safe prime search included
+ *   encrypt  - RSA-OAEP encryption of an AES key, including the retry loop
+ *   decrypt  - RSA-OAEP decryption with CRT
+ *   crt      - the decryption primitive C^d mod n using CRT
+ *   plain    - the decryption primitive C^d mod n as a single modPow
+ *   G, H     - the OAEP mask functions
+ *   concurrent - decrypt on 1, 2, 4, ... threads sharing one key, checking
+ *              every result, to show how handshakes per second scale
+ *
+ * @author Pujan Bhatta
+ * @version 1.0
+ */
+public class RSABenchmark
+{
+    // number of distinct ciphertexts cycled through by each thread
+    private static final int SAMPLES = 64;
+
+    // every benchmark, in the order they run by default
+    private static final String[] ALL = { "keygen", "encrypt", "decrypt", "crt", "plain", "G", "H", "concurrent" };
+
+    // results are stored here so that the JIT cannot drop the benchmarked work
+    private static volatile Object sink;
+
+
+
+    /**
+     * A benchmarked operation.
+     */
+    private static abstract class Op
+    {
+	abstract Object run(int i) throws Exception;
+    }
+
+
+
+    /**
+     * Runs the operation for the given time on the calling thread and prints ops/s,
+     * time per op, allocation rate, bytes allocated per op and GC activity.
+     */
+    private static void measure (String name, Op op, long millis) throws Exception
+    {
+	// warm up
+	long end = System.currentTimeMillis() + millis;
+	for (int i = 0; System.currentTimeMillis() < end; i++)
+	    sink = op.run(i);
+
+	long gcCount = -gcCount(), gcTime = -gcTime();
+	long bytes = -allocatedBytes();
+	long start = System.nanoTime();
+	long ops = 0;
+	end = System.currentTimeMillis() + millis;
+	for (int i = 0; System.currentTimeMillis() < end; i++, ops++)
+	    sink = op.run(i);
+	double seconds = (System.nanoTime() - start) / 1e9;
+	bytes += allocatedBytes();
+	gcCount += gcCount();
+	gcTime += gcTime();
+
+	System.out.printf("%-10s  %12.1f  %10.2f  %10.2f  %12.0f  %8d  %6d%n", name, ops / seconds,
+			  seconds * 1e6 / ops, bytes / seconds / (1 << 20), (double) bytes / ops, gcCount, gcTime);
+    }
+
+
+
+    /**
+     * Total bytes allocated so far by all live threads, including the pool
+     * threads an operation hands work to.  A thread that exits during a
+     * measurement drops out of the total, but pool threads stay alive while
+     * the operation keeps them busy.
+     */
+    private static long allocatedBytes ()
+    {
+	com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	long total = 0;
+	for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+	    total += Math.max(0, bytes);
+	return total;
+    }
+
+
+
+    /**
+     * Total collections by all garbage collectors so far.
+     */
+    private static long gcCount ()
+    {
+	long count = 0;
+	for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+	    count += Math.max(0, gc.getCollectionCount());
+	return count;
+    }
+
+
+
+    /**
+     * Total milliseconds spent by all garbage collectors so far.
+     */
+    private static long gcTime ()
+    {
+	long time = 0;
+	for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+	    time += Math.max(0, gc.getCollectionTime());
+	return time;
+    }
+
+
+
+    /**
+     * Runs decryptions on the given number of threads for the given time.
+     * @return { decryptions, errors }
+     */
+    private static long[] runDecrypt(final RSATool RSA, final byte[][] keys, final byte[][] ciphertexts,
+				     int threads, final long millis) throws Exception
+    {
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+	final CountDownLatch start = new CountDownLatch(1);
+
+	for (int t = 0; t < threads; t++) {
+	    final int offset = t;
+	    results.add(pool.submit(new Callable<long[]>() {
+		    public long[] call() throws Exception {
+			long count = 0, errors = 0;
+			start.await();
+			long end = System.currentTimeMillis() + millis;
+			for (int i = offset; System.currentTimeMillis() < end; i++) {
+			    int j = i % SAMPLES;
+			    byte[] M = RSA.decrypt(ciphertexts[j]);
+			    if (!Arrays.equals(Arrays.copyOf(M, CryptoUtilities.AES_KEY_LEN), keys[j]))
+				errors++;
+			    count++;
+			}
+			return new long[] { count, errors };
+		    }
+		}));
+	}
+	start.countDown();
+
+	long[] total = new long[2];
+	for (Future<long[]> f : results) {
+	    long[] r = f.get();
+	    total[0] += r[0];
+	    total[1] += r[1];
+	}
+	pool.shutdown();
+
+	return total;
+    }
+
+
+
+    /**
+     * Decryption throughput on 1, 2, 4, ... threads up to twice the core count.
+     */
+    private static void concurrent (RSATool RSA, byte[][] keys, byte[][] ciphertexts, int seconds) throws Exception
+    {
+	// warm up
+	runDecrypt(RSA, keys, ciphertexts, 1, 3000);
+
+	int cores = Runtime.getRuntime().availableProcessors();
+	System.out.println();
+	System.out.println("Concurrent RSA-OAEP decryption, " + cores + " cores, one shared key");
+	System.out.println("threads  handshakes/s  speedup  errors");
+	double base = 0;
+	for (int threads = 1; threads <= 2*cores; threads = threads < cores && 2*threads > cores ? cores : 2*threads) {
+	    long[] r = runDecrypt(RSA, keys, ciphertexts, threads, seconds * 1000L);
+	    double rate = r[0] / (double) seconds;
+	    if (threads == 1)
+		base = rate;
+	    System.out.printf("%7d  %12.1f  %7.2f  %6d%n", threads, rate, rate / base, r[1]);
+	}
+    }
+
+
+
+    /**
+     * Outputs usage instructions
+     */
+    public static void printUsage() {
+	System.out.println ("Usage: java RSABenchmark [seconds] [keyfile filename] [parallelcrt] [benchmark ...]");
+	System.out.println (" - seconds is the warm up and measurement time of each benchmark (default 5)");
+	System.out.println (" - keyfile loads the RSA private key instead of generating one");
+	System.out.println (" - parallelcrt enables parallel CRT decryption");
+	System.out.println (" - benchmarks are any of " + Arrays.toString(ALL) + " (default all)");
+    }
+
+
+
+    /**
+     * Main method
+     * @param args optional time per benchmark, key file, flags and benchmark names
+     */
+    public static void main (String [] args) throws Exception
+    {
+	int seconds = 5;
+	String keyfile = null;
+	boolean parallelCRT = false;
+	List<String> benchmarks = new ArrayList<String>();
+	for (int i = 0; i < args.length; i++) {
+	    if (args[i].compareTo("keyfile") == 0 && i+1 < args.length)
+		keyfile = args[++i];
+	    else if (args[i].compareTo("parallelcrt") == 0)
+		parallelCRT = true;
+	    else if (args[i].matches("[0-9]+"))
+		seconds = Integer.parseInt(args[i]);
+	    else if (Arrays.asList(ALL).contains(args[i]))
+		benchmarks.add(args[i]);
+	    else {
+		printUsage();
+		return;
+	    }
+	}
+	if (benchmarks.isEmpty())
+	    benchmarks = Arrays.asList(ALL);
+
+	final RSATool RSA = keyfile != null ? RSATool.load(keyfile, false) : new RSATool(false);
+	final RSATool pub = new RSATool(RSA.get_n(), RSA.get_e(), false);
+	RSA.setParallelCRT(parallelCRT);
+
+	// encrypt random AES keys, as Client.getKey does
+	Random rnd = new Random();
+	final byte[][] keys = new byte[SAMPLES][CryptoUtilities.AES_KEY_LEN];
+	final byte[][] ciphertexts = new byte[SAMPLES][];
+	final BigInteger[] C = new BigInteger[SAMPLES];
+	for (int i = 0; i < SAMPLES; i++) {
+	    rnd.nextBytes(keys[i]);
+	    ciphertexts[i] = pub.encrypt(keys[i]);
+	    C[i] = new BigInteger(ciphertexts[i]);
+	}
+
+	long millis = seconds * 1000L;
+	System.out.println("RSATool benchmarks, " + seconds + " s warm up and measurement each" + (parallelCRT ? ", parallel CRT" : ""));
+	System.out.println("benchmark          ops/s       us/op  alloc MB/s    alloc B/op  gc count   gc ms");
+	for (String name : benchmarks) {
+	    if (name.equals("keygen"))
+		measure(name, new Op() { Object run(int i) { return new RSATool(false); } }, millis);
+	    else if (name.equals("encrypt"))
+		measure(name, new Op() { Object run(int i) { return pub.encrypt(keys[i % SAMPLES]); } }, millis);
+	    else if (name.equals("decrypt"))
+		measure(name, new Op() { Object run(int i) { return RSA.decrypt(ciphertexts[i % SAMPLES]); } }, millis);
+	    else if (name.equals("crt"))
+		measure(name, new Op() { Object run(int i) { return RSA.decryptCRT(C[i % SAMPLES]); } }, millis);
+	    else if (name.equals("plain"))
+		measure(name, new Op() { Object run(int i) { return RSA.decryptPlain(C[i % SAMPLES]); } }, millis);
+	    else if (name.equals("G"))
+		measure(name, new Op() { Object run(int i) { return RSA.G(keys[i % SAMPLES]); } }, millis);
+	    else if (name.equals("H"))
+		measure(name, new Op() { Object run(int i) { return RSA.H(ciphertexts[i % SAMPLES]); } }, millis);
+	    else if (name.equals("concurrent"))
+		concurrent(RSA, keys, ciphertexts, seconds);
+	}
+    }
+}
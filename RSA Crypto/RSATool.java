@@ -1,8 +1,12 @@
 import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.math.*;
 import java.security.*;
 import javax.crypto.*;
 import javax.crypto.spec.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class provides an implementation of 1024-bit RSA-OAEP.
@@ -19,19 +23,39 @@ public class RSATool {
     private final static int K0 = 16;  // K0 in bytes
     private final static int K1 = 16;  // K1 in bytes
 
+    // bit length of the safe primes p and q
+    public final static int PRIME_BITS = 4*K + 1;
+
+    // number of values in a saved private key
+    private final static int KEY_FIELDS = 8;
+
     // RSA key data
     private BigInteger n;
     private BigInteger e, d, p, q;
 
     // TODO:  add whatever additional variables that are required to implement 
     //    Chinese Remainder decryption as described in Problem 2
-    private BigInteger dP,dQ,qInv, m1, m2, h;
+    // The key data is never modified after construction, so one instance can be
+    // used by any number of threads at once.
+    private BigInteger dP,dQ,qInv;
+
+    // fingerprint of (n, e), computed on first use
+    private volatile byte[] fingerprint;
     
     // SecureRandom for OAEP and key generation
     private SecureRandom rnd;
 
     private boolean debug = false;
 
+    // compute the two CRT halves on separate cores when there is spare capacity
+    private volatile boolean parallelCRT = false;
+
+    // pool shared by all instances for the CRT halves run in parallel
+    private final static ForkJoinPool CRT_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    // number of decryptions currently running, used to judge spare capacity
+    private final static AtomicInteger activeDecrypts = new AtomicInteger();
+
 
 
     /**
@@ -45,35 +69,78 @@ public class RSATool {
 
 
     /**
-     * G(M) = 1st K-K0 bytes of successive applications of SHA1 to M
+     * Per-thread OAEP working state:  a SHA-1 digest and the scratch buffers
+     * for one block, reused by every encryption and decryption on the thread
+     * so the padding itself allocates nothing.
      */
-    private byte[] G(byte[] M) {
-        MessageDigest sha1 = null;
-	try {
-	    sha1 = MessageDigest.getInstance("SHA1");
+    private static final class OAEPCodec {
+	final MessageDigest sha1;
+	final byte[] hash = new byte[20];   // SHA-1 output
+	final byte[] seed = new byte[K0];   // r on encryption, u on decryption
+	final byte[] block = new byte[K];   // (s||t), unsigned big-endian
+
+	OAEPCodec() {
+	    try {
+		sha1 = MessageDigest.getInstance("SHA1");
+	    }
+	    catch (NoSuchAlgorithmException e) {
+		throw new IllegalStateException(e);
+	    }
 	}
-	catch (NoSuchAlgorithmException e) {
-	    System.out.println(e);
-	    System.exit(1);
+
+	/**
+	 * Hashes len bytes of in into the hash buffer.
+	 */
+	void digest(byte[] in, int off, int len) {
+	    sha1.update(in, off, len);
+	    try {
+		sha1.digest(hash, 0, hash.length);
+	    }
+	    catch (DigestException e) {
+		throw new IllegalStateException(e);
+	    }
 	}
 
+	/**
+	 * out[outOff .. outOff+K-K0) ^= G(in[off .. off+len))
+	 */
+	void xorG(byte[] in, int off, int len, byte[] out, int outOff) {
+	    digest(in, off, len);
+
+	    // each 20-byte step contributes its first K0 bytes, as in the original G
+	    for (int numBytes = 0; numBytes < K-K0; numBytes += 20) {
+		int count = numBytes + 20 < K-K0 ? K0 : K-K0-numBytes;
+		for (int i = 0; i < count; i++)
+		    out[outOff + numBytes + i] ^= hash[i];
+		if (numBytes + 20 < K-K0)
+		    digest(hash, 0, hash.length);
+	    }
+	}
 
-	byte[] output = new byte[K-K0];
-	byte[] input = M;
+	/**
+	 * out[outOff .. outOff+K0) ^= H(in[off .. off+len))
+	 */
+	void xorH(byte[] in, int off, int len, byte[] out, int outOff) {
+	    digest(in, off, len);
+	    for (int i = 0; i < K0; i++)
+		out[outOff + i] ^= hash[i];
+	}
+    }
 
-	int numBytes = 0;
-	while (numBytes < K-K0) {
-          byte[] hashval = sha1.digest(input);
+    private static final ThreadLocal<OAEPCodec> CODEC = new ThreadLocal<OAEPCodec>() {
+	    protected OAEPCodec initialValue() {
+		return new OAEPCodec();
+	    }
+	};
 
-	  if (numBytes + 20 < K-K0)
-	      System.arraycopy(hashval,0,output,numBytes,K0);
-	  else
-	      System.arraycopy(hashval,0,output,numBytes,K-K0-numBytes);
 
-	  numBytes += 20;
-	  input = hashval;
-	}
 
+    /**
+     * G(M) = 1st K-K0 bytes of successive applications of SHA1 to M
+     */
+    byte[] G(byte[] M) {
+	byte[] output = new byte[K-K0];
+	CODEC.get().xorG(M, 0, M.length, output, 0);
 	return output;
     }
 
@@ -82,21 +149,9 @@ public class RSATool {
     /**
      * H(M) = the 1st K0 bytes of SHA1(M)
      */
-    private byte[] H(byte[] M) {
-        MessageDigest sha1 = null;
-	try {
-	    sha1 = MessageDigest.getInstance("SHA1");
-	}
-	catch (NoSuchAlgorithmException e) {
-	    System.out.println(e);
-	    System.exit(1);
-	}
-
-        byte[] hashval = sha1.digest(M);
- 
+    byte[] H(byte[] M) {
 	byte[] output = new byte[K0];
-	System.arraycopy(hashval,0,output,0,K0);
-
+	CODEC.get().xorH(M, 0, M.length, output, 0);
 	return output;
     }
 
@@ -110,6 +165,19 @@ public class RSATool {
      *   decryption as described in Problem 2.
      */
     public RSATool(boolean setDebug) {
+	this(setDebug, null);
+    }
+
+
+
+    /**
+     * Construct instance for decryption, taking the safe primes p and q from
+     * the given pool rather than searching for them here.
+     *
+     * @param setDebug  debug flag
+     * @param primes  pool of pre-generated safe primes, or null to generate them inline
+     */
+    public RSATool(boolean setDebug, SafePrimePool primes) {
 	// set the debug flag
 	debug = setDebug;
         
@@ -118,18 +186,13 @@ public class RSATool {
         debug("Generating Variables");
 	// TODO:  include key generation implementation here (remove init of d)
         
-        // Generating strong primes q and q
-        do{
-            p = BigInteger.probablePrime(4*K, rnd);
-            p = p.multiply(BigInteger.valueOf(2));
-	    p = p.add(BigInteger.ONE);
-        } while(!p.isProbablePrime(CryptoUtilities.CERTAINTY));
+        // Generating strong primes q and q:  any not ready in the pool are
+        // searched for at the same time, each on half of the cores
+        BigInteger[] pq = primes != null ? primes.takeDistinct(PRIME_BITS, 2)
+            : SafePrimeGenerator.generateDistinct(PRIME_BITS, 2);
+        p = pq[0];
+        q = pq[1];
         debug("p = " + p);
-        do{
-            q = BigInteger.probablePrime(4*K, rnd);
-            q = q.multiply(BigInteger.valueOf(2));
-	    q = q.add(BigInteger.ONE);
-        } while(!q.isProbablePrime(CryptoUtilities.CERTAINTY));
         debug("q = "  + q);
         // n = pq
         
@@ -177,13 +240,131 @@ public class RSATool {
 	n = new_n;
 	e = new_e;
 
-	d = p = q = dQ = dP = qInv = m1 = m2 = null;
+	d = p = q = dQ = dP = qInv = null;
 
 	// TODO:  initialize RSA decryption variables here
     }
 
 
 
+    /**
+     * Construct instance for decryption from previously saved private key data.
+     */
+    private RSATool(BigInteger[] key, boolean setDebug) {
+	// set the debug flag
+	debug = setDebug;
+
+	// initialize random number generator
+	rnd = new SecureRandom();
+
+	n = key[0];
+	e = key[1];
+	d = key[2];
+	p = key[3];
+	q = key[4];
+	dP = key[5];
+	dQ = key[6];
+	qInv = key[7];
+    }
+
+
+
+    /**
+     * Loads a private key saved by save().
+     *
+     * @param filename  name of the key file
+     * @param setDebug  debug flag for the new instance
+     * @throws IOException if the file cannot be read or does not hold a valid key
+     * @return instance initialized for decryption
+     */
+    public static RSATool load(String filename, boolean setDebug) throws IOException {
+	BigInteger[] key = new BigInteger[KEY_FIELDS];
+
+	// the file is small, so it is read whole and every length checked against what is left of it
+	DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(Paths.get(filename))));
+	try {
+	    for (int i = 0; i < KEY_FIELDS; i++) {
+		int size = in.readInt();
+		if (size <= 0 || size > in.available())
+		    throw new IOException("Bad key file " + filename);
+		byte[] field = new byte[size];
+		in.readFully(field);
+		key[i] = new BigInteger(field);
+	    }
+
+	    // make sure the CRT values belong to this modulus
+	    if (key[3].signum() <= 0 || !key[3].multiply(key[4]).equals(key[0])
+		|| !key[4].multiply(key[7]).mod(key[3]).equals(BigInteger.ONE))
+		throw new IOException("Bad key file " + filename);
+	}
+	catch (EOFException e) {
+	    throw new IOException("Bad key file " + filename, e);
+	}
+	catch (RuntimeException e) {
+	    throw new IOException("Bad key file " + filename, e);
+	}
+
+	return new RSATool(key, setDebug);
+    }
+
+
+
+    /**
+     * Saves the private key (n, e, d, p, q, dP, dQ, qInv) to a file readable
+     * only by its owner.  Each value is stored as a length-prefixed two's
+     * complement byte array.  The key is written to a temporary file created
+     * with owner-only permissions, then renamed over the key file, so it is
+     * never readable by others and a crash never leaves half a key behind.
+     *
+     * @param filename  name of the key file
+     * @throws IOException if the file cannot be written
+     * @throw IllegalStateException if the class is not initialized for decryption
+     */
+    public void save(String filename) throws IOException {
+	if (d == null)
+	    throw new IllegalStateException("RSA class not initialized for decryption");
+
+	Path keyfile = Paths.get(filename).toAbsolutePath();
+	Path temp;
+	try {
+	    temp = Files.createTempFile(keyfile.getParent(), keyfile.getFileName().toString(), ".tmp",
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+	}
+	catch (UnsupportedOperationException ex) {
+	    // not a POSIX file system:  restrict the file before anything is written to it
+	    temp = Files.createTempFile(keyfile.getParent(), keyfile.getFileName().toString(), ".tmp");
+	    temp.toFile().setReadable(false, false);
+	    temp.toFile().setReadable(true, true);
+	}
+
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+	try {
+	    BigInteger[] key = { n, e, d, p, q, dP, dQ, qInv };
+	    for (int i = 0; i < KEY_FIELDS; i++)
+		CryptoUtilities.send(key[i].toByteArray(), out);
+	    out.close();
+	    Files.move(temp, keyfile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	finally {
+	    out.close();
+	    Files.deleteIfExists(temp);
+	}
+    }
+
+
+
+    /**
+     * Enables or disables parallel CRT decryption.  When enabled, the two half-size
+     * exponentiations of a decryption run on two cores as long as at most half of
+     * the cores are busy decrypting; under heavier load decryption stays sequential
+     * so that parallelism comes from concurrent handshakes instead.
+     */
+    public void setParallelCRT(boolean parallel) {
+	parallelCRT = parallel;
+    }
+
+
+
     public BigInteger get_n() {
 	return n;
     }
@@ -194,6 +375,41 @@ public class RSATool {
 
 
 
+    /**
+     * Returns the SHA-256 fingerprint of the public key, which identifies the
+     * key in the clients' key caches.
+     */
+    public byte[] fingerprint() {
+	byte[] f = fingerprint;
+	if (f == null)
+	    fingerprint = f = fingerprint(n, e);
+	return f.clone();
+    }
+
+
+
+    /**
+     * Computes the SHA-256 fingerprint of the public key (n, e) over the
+     * length-prefixed two's complement encodings of n and e.
+     */
+    public static byte[] fingerprint(BigInteger n, BigInteger e) {
+	try {
+	    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+	    DataOutputStream out = new DataOutputStream(encoded);
+	    CryptoUtilities.queue(n.toByteArray(), out);
+	    CryptoUtilities.queue(e.toByteArray(), out);
+	    return MessageDigest.getInstance("SHA-256").digest(encoded.toByteArray());
+	}
+	catch (IOException ex) {
+	    throw new IllegalStateException(ex);
+	}
+	catch (NoSuchAlgorithmException ex) {
+	    throw new IllegalStateException("SHA-256 is not available", ex);
+	}
+    }
+
+
+
     /**
      * Encrypts the given byte array using RSA-OAEP.
      *
@@ -213,66 +429,48 @@ public class RSATool {
 	// TODO:  implement RSA-OAEP encryption here (replace following return statement)
 
 
-        BigInteger C;
-        do{
-            // Initialize arrays
-            byte [] r = new byte[K0];
-            byte [] s = new byte [K - K0];
-            byte [] t = new byte [K0];
-            byte[] st = new byte[K];
-            rnd.nextBytes(r);
-            debug("r = " + CryptoUtilities.toHexString(r));
-
-            byte [] g_r = G(r);
-            debug("G(r) = " + CryptoUtilities.toHexString(g_r));
-             
-            // s = (M||0^k_1) xor G(r)
-            for(int i = 0; i < K-K0; i++){
-                if(i < plaintext.length){
-                    s[i] = plaintext[i];
-                    s[i] ^= g_r[i];
-                }
-                else{
-
-                    s[i] = 0;
-                    s[i] ^= g_r[i];
-                }
-            }
-            debug("s = " + CryptoUtilities.toHexString(s));
-
-            byte [] h_s = H(s);
-            debug("H(s) = " + CryptoUtilities.toHexString(h_s));
-
-            for(int i = 0; i < K0; i++){
-                t[i] = (byte) (r[i] ^ h_s[i]);
-            }
-
-            //(s||t)
-            System.arraycopy(s,0,st,0,K-K0);
-            System.arraycopy(t,0,st,K-K0,K0);
-            debug("(s||t) = " + CryptoUtilities.toHexString(st));
-            
-            C = new BigInteger(st);
-        // If (s||t) is greater than or equal to n 
-        // A padding error sometimes occured and debug showed that it was for negative numbers 
-        // So we find a new C if its negative
-        }while (C.compareTo(n) >= 0 || C.compareTo(BigInteger.ZERO) == -1);
-        C = C.modPow(e, n);
-        debug("C = " + C);
+	// n has more than 8K bits, so every unsigned K-byte block (s||t) is below it
+	if (n.bitLength() <= 8*K)
+	    throw new IllegalStateException("RSA modulus too small for OAEP");
+
+	OAEPCodec codec = CODEC.get();
+	byte[] r = codec.seed;
+	byte[] st = codec.block;
+	rnd.nextBytes(r);
+	if (debug)
+	    debug("r = " + CryptoUtilities.toHexString(r));
+
+	// s = (M||0^k_1) xor G(r)
+	System.arraycopy(plaintext, 0, st, 0, plaintext.length);
+	for (int i = plaintext.length; i < K-K0; i++)
+	    st[i] = 0;
+	codec.xorG(r, 0, K0, st, 0);
+
+	// t = r xor H(s)
+	System.arraycopy(r, 0, st, K-K0, K0);
+	codec.xorH(st, 0, K-K0, st, K-K0);
+	if (debug)
+	    debug("(s||t) = " + CryptoUtilities.toHexString(st));
+
+	BigInteger C = new BigInteger(1, st).modPow(e, n);
+	if (debug)
+	    debug("C = " + C);
         
 	return C.toByteArray();
     }
 
 
     /**
-     * Decrypts the given byte array using RSA.
+     * Decrypts the given byte array using RSA.  Intermediate values are local to
+     * the call or to the calling thread, so concurrent decryptions with the same
+     * instance are safe and need no locking.
      *
      * TODO:  implement RSA-OAEP decryption using the Chinese Remainder method described in Problem 2
      *
      * @param ciphertext  byte array representing the ciphertext
      * @throw IllegalArgumentException if the ciphertext is not valid
      * @throw IllegalStateException if the class is not initialized for decryption
-     * @return resulting plaintexttext
+     * @return resulting plaintexttext, padded with zeros to K-K0-K1 bytes
      */
     public byte[] decrypt(byte[] ciphertext) {
 	debug("In RSA decrypt");
@@ -285,58 +483,111 @@ public class RSATool {
         // make sure ciphertext fits into one block
 
         BigInteger C = new BigInteger(ciphertext);
-        debug("C = " + C);
+	if (debug)
+	    debug("C = " + C);
         
-        if (C.compareTo(n) >= 0){
+        if (C.signum() < 0 || C.compareTo(n) >= 0){
 	    throw new IllegalArgumentException("ciphertext longer than one block");
         }
         //decrypt using CRT
-	m1 = C.modPow(dP, p);
-	m2 = C.modPow(dQ, q);
-        h = qInv.multiply(m1.subtract(m2)).mod(p);
-        
-        BigInteger M = m2.add(h.multiply(q));
-	debug("M = " + M);
-        
-        
-        // Initialize arrays
-        byte[] st = M.toByteArray();
-	byte[] s = new byte[K-K0];
-	byte[] t = new byte[K0];
-        byte[] u = new byte[K0];
-        byte[] v = new byte[K-K0];
-        
-        // copying s
-        System.arraycopy(st,0,s,0,K-K0);
-	debug("s = " + CryptoUtilities.toHexString(s));
-        
-        // copying t
-        System.arraycopy(st,K-K0,t,0,K0);
-	debug("t = " + CryptoUtilities.toHexString(t));
-        
-         // u = t xor H(s)
-        byte[] h_s = H(s);
-	debug("H(s) = " + CryptoUtilities.toHexString(h_s));
-	for (int i=0; i<K0; i++)
-	    u[i] = (byte) (t[i] ^ h_s[i]);
-	debug("u = " + CryptoUtilities.toHexString(u));
-        
-        // v = s xor G(u)
-        byte[] g_u = G(u);
-	debug("G(u) = " + CryptoUtilities.toHexString(g_u));
-	for (int i=0; i<K-K0; i++)
-	    v[i] = (byte) (s[i] ^ g_u[i]);
-	debug("v = " + CryptoUtilities.toHexString(v));
-        
-        // Checking the last K0 bits of v to see if they are all 0. 
+        BigInteger M = decryptCRT(C);
+	if (debug)
+	    debug("M = " + M);
+
+	OAEPCodec codec = CODEC.get();
+	byte[] st = codec.block;
+	byte[] u = codec.seed;
+	if (!toBlock(M, st))
+	    throw new IllegalArgumentException("Padding error: ciphertext invalid");
+	if (debug)
+	    debug("(s||t) = " + CryptoUtilities.toHexString(st));
+
+	// u = t xor H(s)
+	System.arraycopy(st, K-K0, u, 0, K0);
+	codec.xorH(st, 0, K-K0, u, 0);
+
+	// v = s xor G(u), in place of s
+	codec.xorG(u, 0, K0, st, 0);
+
+        // Checking the last K1 bytes of v to see if they are all 0. 
+	int zero = 0;
         for (int i = K-K1-K0; i<K - K0; i++)
-	    if (v[i] != 0){
-		throw new IllegalArgumentException("Padding error: ciphertext invalid");
-        }
+	    zero |= st[i];
+	if (zero != 0)
+	    throw new IllegalArgumentException("Padding error: ciphertext invalid");
+
         // If v's has correct padding of 0 then we get M
-	M = new BigInteger(v);
-	debug("M as integer = " + M);
+	byte[] plaintext = new byte[K-K0-K1];
+	System.arraycopy(st,0,plaintext,0,K-K0-K1);
+	if (debug)
+	    debug("M = " + CryptoUtilities.toHexString(plaintext));
+
+	return plaintext;
+    }
 
-	return M.toByteArray();
+
+    /**
+     * RSA decryption primitive M = C^d mod n using the Chinese Remainder Theorem,
+     * with the two halves in parallel when enabled and there is spare capacity.
+     */
+    BigInteger decryptCRT(final BigInteger C) {
+	BigInteger m1, m2;
+	int running = activeDecrypts.incrementAndGet();
+	try {
+	    if (parallelCRT && 2*running <= CRT_POOL.getParallelism() && CRT_POOL.getQueuedSubmissionCount() == 0) {
+		// spare cores:  compute C^dP mod p in the pool while this thread does C^dQ mod q
+		ForkJoinTask<BigInteger> half = CRT_POOL.submit(new Callable<BigInteger>() {
+			public BigInteger call() {
+			    return C.modPow(dP, p);
+			}
+		    });
+		m2 = C.modPow(dQ, q);
+		m1 = half.join();
+	    }
+	    else {
+		m1 = C.modPow(dP, p);
+		m2 = C.modPow(dQ, q);
+	    }
+	}
+	finally {
+	    activeDecrypts.decrementAndGet();
+	}
+        BigInteger h = qInv.multiply(m1.subtract(m2)).mod(p);
+
+	return m2.add(h.multiply(q));
+    }
+
+
+
+    /**
+     * RSA decryption primitive M = C^d mod n without the Chinese Remainder
+     * Theorem.  Only used to measure what CRT saves.
+     */
+    BigInteger decryptPlain(BigInteger C) {
+	return C.modPow(d, n);
+    }
+
+
+
+    /**
+     * Encodes a non-negative integer as exactly K big-endian bytes into the given
+     * block.  Leading zero bytes are kept, unlike BigInteger.toByteArray().
+     *
+     * @return false if the integer does not fit in K bytes
+     */
+    private static boolean toBlock(BigInteger x, byte[] block) {
+	byte[] bytes = x.toByteArray();
+
+	// drop the sign byte, left-pad with zeros
+	int start = bytes.length > K ? bytes.length - K : 0;
+	for (int i = 0; i < start; i++)
+	    if (bytes[i] != 0)
+		return false;
+	int len = bytes.length - start;
+	for (int i = 0; i < K - len; i++)
+	    block[i] = 0;
+	System.arraycopy(bytes, start, block, K - len, len);
+
+	return true;
     }
 }
@@ -0,0 +1,293 @@
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Compares the throughput of the record protection modes.  For each record
+ * size, CryptoSession.seal() and open() are warmed up and then run for a fixed
+ * time on one thread in each mode, and the harness reports megabytes of message
+ * protected per second together with the bytes allocated per record and the
+ * garbage collections seen during the run.
+ *
+ *   cbc-hmac - HMAC-SHA1 appended, then AES-CBC:  two passes over the record
+ *   cbc-etm  - AES-CBC, then HMAC-SHA256 over the ciphertext:  two passes
+ *   gcm      - AES-GCM:  encryption and authentication in one pass
+ *
+ * The "1-shot" runs seal each record with a new session, which looks up and
+ * initialises the primitives every time, to show what reusing them saves.  The
+ * "reject" runs open a record with a flipped bit, to show what a forged record
+ * costs the receiver.
+ * Finally, CBC decryption of the largest record sent in one piece is run on
+ * pools of 1, 2, 4, ... threads to show how parallel decryption scales.
+ *
+ * Before measuring, every mode is checked to round trip and to reject a record
+ * with a flipped bit, and parallel decryption to give the same result as one
+ * pass.
+ *
+ * @author Pujan Bhatta
+ * @version 1.0
+ */
+public class RecordBenchmark
+{
+    // record modes, in the order they run
+    private static final String[] MODES = { CryptoUtilities.RECORDS_CBC_HMAC, CryptoUtilities.RECORDS_CBC_ETM,
+					     CryptoUtilities.RECORDS_GCM };
+
+    // default record sizes:  a short message, a TLS-sized record and a streamed chunk
+    private static final int[] SIZES = { 1024, 16 * 1024, CryptoUtilities.CHUNK_SIZE };
+
+    // results are stored here so that the JIT cannot drop the benchmarked work
+    private static volatile Object sink;
+
+
+
+    /**
+     * A benchmarked operation.
+     */
+    private static abstract class Op
+    {
+	abstract Object run() throws Exception;
+    }
+
+
+
+    /**
+     * Runs the operation for the given time on the calling thread and prints the
+     * message throughput, time per record, bytes allocated per record and GC
+     * activity.
+     */
+    private static void measure (String name, int size, Op op, long millis) throws Exception
+    {
+	com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	long tid = Thread.currentThread().getId();
+
+	// warm up
+	long end = System.currentTimeMillis() + millis;
+	while (System.currentTimeMillis() < end)
+	    sink = op.run();
+
+	long gcCount = -gcCount(), gcTime = -gcTime();
+	long bytes = -threads.getThreadAllocatedBytes(tid);
+	long start = System.nanoTime();
+	long ops = 0;
+	end = System.currentTimeMillis() + millis;
+	for (; System.currentTimeMillis() < end; ops++)
+	    sink = op.run();
+	double seconds = (System.nanoTime() - start) / 1e9;
+	bytes += threads.getThreadAllocatedBytes(tid);
+	gcCount += gcCount();
+	gcTime += gcTime();
+
+	System.out.printf("%-16s  %8d  %10.1f  %10.2f  %12.0f  %8d  %6d%n", name, size, (double) size * ops / seconds / (1 << 20),
+			  seconds * 1e6 / ops, (double) bytes / ops, gcCount, gcTime);
+    }
+
+
+
+    /**
+     * Total collections by all garbage collectors so far.
+     */
+    private static long gcCount ()
+    {
+	long count = 0;
+	for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+	    count += Math.max(0, gc.getCollectionCount());
+	return count;
+    }
+
+
+
+    /**
+     * Total milliseconds spent by all garbage collectors so far.
+     */
+    private static long gcTime ()
+    {
+	long time = 0;
+	for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+	    time += Math.max(0, gc.getCollectionTime());
+	return time;
+    }
+
+
+
+    /**
+     * Checks that a record round trips in the given mode and that a flipped bit
+     * anywhere in it is detected.
+     */
+    private static void check (CryptoSession session, byte[] message)
+    {
+	String mode = session.get_mode();
+	byte[] record = session.seal(message);
+	if (!Arrays.equals(session.open(record), message))
+	    throw new IllegalStateException(mode + ": record does not round trip");
+
+	for (int i : new int[] { 0, record.length / 2, record.length - 1 }) {
+	    byte[] tampered = record.clone();
+	    tampered[i] ^= 1;
+	    if (session.open(tampered) != null)
+		throw new IllegalStateException(mode + ": flipped bit at " + i + " not detected");
+	}
+    }
+
+
+
+    /**
+     * Checks that parallel decryption gives the same result as one pass, for the
+     * record itself and for copies with a flipped bit in the first segment, at a
+     * segment boundary, near the end and in the last byte.
+     */
+    private static void checkParallel (CryptoSession serial, CryptoSession parallel, byte[] record, byte[] message)
+    {
+	String mode = serial.get_mode();
+	if (!Arrays.equals(parallel.open(record), message))
+	    throw new IllegalStateException("parallel " + mode + ": record does not round trip");
+
+	int end = record.length - CryptoUtilities.AES_PARAM_LEN;
+	for (int i : new int[] { 0, CryptoUtilities.PARALLEL_CBC_SEGMENT - 1, end - 1, record.length - 1 }) {
+	    byte[] tampered = record.clone();
+	    tampered[i] ^= 1;
+	    if (!Arrays.equals(parallel.open(tampered), serial.open(tampered)))
+		throw new IllegalStateException("parallel " + mode + ": flipped bit at " + i + " gives a different result");
+	}
+    }
+
+
+
+    /**
+     * Warms the operation up and runs it for the given time on the calling
+     * thread, returning the message throughput in MB/s.
+     */
+    private static double throughput (int size, Op op, long millis) throws Exception
+    {
+	long end = System.currentTimeMillis() + millis;
+	while (System.currentTimeMillis() < end)
+	    sink = op.run();
+
+	long start = System.nanoTime();
+	long ops = 0;
+	end = System.currentTimeMillis() + millis;
+	for (; System.currentTimeMillis() < end; ops++)
+	    sink = op.run();
+
+	return (double) size * ops / ((System.nanoTime() - start) / 1e9) / (1 << 20);
+    }
+
+
+
+    /**
+     * CBC decryption throughput of a record of STREAM_THRESHOLD bytes, the
+     * largest sent in one piece, on pools of 1, 2, 4, ... threads up to twice the
+     * core count.  With one thread the record is decrypted in one pass.  The
+     * cbc-etm path is only checked, as its decryption is the same.
+     */
+    private static void parallel (SecretKeySpec key, Random rnd, long millis) throws Exception
+    {
+	byte[] message = new byte[(int) CryptoUtilities.STREAM_THRESHOLD];
+	rnd.nextBytes(message);
+	CryptoSession serial = new CryptoSession(key, CryptoUtilities.RECORDS_CBC_HMAC);
+	final byte[] record = serial.seal(message);
+	CryptoSession serialETM = new CryptoSession(key, CryptoUtilities.RECORDS_CBC_ETM);
+	byte[] recordETM = serialETM.seal(message);
+
+	int cores = Runtime.getRuntime().availableProcessors();
+	System.out.println();
+	System.out.println("Parallel CBC decryption, " + cores + " cores, " + message.length + " byte record");
+	System.out.println("threads        MB/s  speedup");
+	double base = 0;
+	for (int threads = 1; threads <= 2*cores; threads = threads < cores && 2*threads > cores ? cores : 2*threads) {
+	    ForkJoinPool pool = new ForkJoinPool(threads);
+	    try {
+		final CryptoSession session = new CryptoSession(key, CryptoUtilities.RECORDS_CBC_HMAC);
+		session.setParallelCBC(pool);
+		checkParallel(serial, session, record, message);
+		CryptoSession sessionETM = new CryptoSession(key, CryptoUtilities.RECORDS_CBC_ETM);
+		sessionETM.setParallelCBC(pool);
+		checkParallel(serialETM, sessionETM, recordETM, message);
+
+		double rate = throughput(message.length, new Op() {
+			Object run() { return session.open(record); }
+		    }, millis);
+		if (threads == 1)
+		    base = rate;
+		System.out.printf("%7d  %10.1f  %7.2f%n", threads, rate, rate / base);
+	    }
+	    finally {
+		pool.shutdown();
+	    }
+	}
+    }
+
+
+
+    /**
+     * Outputs usage instructions
+     */
+    public static void printUsage() {
+	System.out.println ("Usage: java RecordBenchmark [seconds] [size bytes ...]");
+	System.out.println (" - seconds is the warm up and measurement time of each run (default 3)");
+	System.out.println (" - size is a record size to measure (default " + SIZES[0] + ", " + SIZES[1] + " and " + SIZES[2] + ")");
+    }
+
+
+
+    /**
+     * Main method
+     * @param args optional time per run and record sizes
+     */
+    public static void main (String [] args) throws Exception
+    {
+	int seconds = 3;
+	List<Integer> sizes = new ArrayList<Integer>();
+	for (int i = 0; i < args.length; i++) {
+	    if (args[i].matches("[0-9]+") && i == 0)
+		seconds = Integer.parseInt(args[i]);
+	    else if (args[i].matches("[0-9]+"))
+		sizes.add(Integer.parseInt(args[i]));
+	    else {
+		printUsage();
+		return;
+	    }
+	}
+	if (sizes.isEmpty())
+	    for (int size : SIZES)
+		sizes.add(size);
+
+	Random rnd = new Random();
+	byte[] raw = new byte[CryptoUtilities.AES_KEY_LEN];
+	rnd.nextBytes(raw);
+	final SecretKeySpec key = new SecretKeySpec(raw, "AES");
+
+	long millis = seconds * 1000L;
+	System.out.println("Record protection, one thread, " + seconds + " s warm up and measurement each");
+	System.out.println("benchmark             bytes        MB/s   us/record  alloc B/rec  gc count   gc ms");
+	for (int size : sizes) {
+	    final byte[] message = new byte[size];
+	    rnd.nextBytes(message);
+
+	    for (final String mode : MODES) {
+		final CryptoSession session = new CryptoSession(key, mode);
+		check(session, message);
+		final byte[] record = session.seal(message);
+
+		measure(mode + " seal", size, new Op() {
+			Object run() { return session.seal(message); }
+		    }, millis);
+		measure(mode + " open", size, new Op() {
+			Object run() { return session.open(record); }
+		    }, millis);
+		measure(mode + " 1-shot", size, new Op() {
+			Object run() { return new CryptoSession(key, mode).seal(message); }
+		    }, millis);
+
+		final byte[] forged = record.clone();
+		forged[forged.length / 2] ^= 1;
+		measure(mode + " reject", size, new Op() {
+			Object run() { return session.open(forged); }
+		    }, millis);
+	    }
+	}
+
+	parallel(key, rnd, millis);
+    }
+}
@@ -0,0 +1,96 @@
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Random;
+
+/**
+ * Compares the sieving SafePrimeGenerator with the original RSATool search
+ * loop, which draws a random prime q with BigInteger.probablePrime and
+ * discards it whenever 2q + 1 is not prime.  Reports the average time per safe
+ * prime at each size.
+ *
+ * @author Pujan Bhatta
+ * @version 1.0
+ */
+public class SafePrimeBenchmark
+{
+    /**
+     * The original search loop from the RSATool constructor.
+     */
+    private static BigInteger probablePrimeLoop (int bits, Random rnd)
+    {
+	BigInteger p;
+	do {
+	    p = BigInteger.probablePrime(bits - 1, rnd);
+	    p = p.multiply(BigInteger.valueOf(2));
+	    p = p.add(BigInteger.ONE);
+	} while (!p.isProbablePrime(CryptoUtilities.CERTAINTY));
+
+	return p;
+    }
+
+
+
+    /**
+     * Average milliseconds per safe prime over the given number of samples.
+     */
+    private static double time (boolean sieve, int bits, int samples, Random rnd)
+    {
+	long start = System.nanoTime();
+	for (int i = 0; i < samples; i++) {
+	    BigInteger p = sieve ? SafePrimeGenerator.generate(bits, rnd) : probablePrimeLoop(bits, rnd);
+	    if (p.bitLength() != bits)
+		throw new IllegalStateException("wrong size safe prime");
+	}
+	return (System.nanoTime() - start) / 1e6 / samples;
+    }
+
+
+
+    /**
+     * Outputs usage instructions
+     */
+    public static void printUsage() {
+	System.out.println ("Usage: java SafePrimeBenchmark [samples] [bits ...]");
+	System.out.println (" - samples is the number of safe primes generated per size and method (default 10)");
+	System.out.println (" - bits are the sizes of the safe primes (default 512 1024 1536)");
+    }
+
+
+
+    /**
+     * Main method
+     * @param args optional sample count followed by prime sizes
+     */
+    public static void main (String [] args)
+    {
+	int samples = 10;
+	int[] sizes = { 512, 1024, 1536 };
+	try {
+	    if (args.length > 0)
+		samples = Integer.parseInt(args[0]);
+	    if (args.length > 1) {
+		sizes = new int[args.length - 1];
+		for (int i = 1; i < args.length; i++)
+		    sizes[i-1] = Integer.parseInt(args[i]);
+	    }
+	}
+	catch (NumberFormatException e) {
+	    printUsage();
+	    return;
+	}
+
+	Random rnd = new SecureRandom();
+
+	// warm up both methods
+	time(false, 256, 5, rnd);
+	time(true, 256, 5, rnd);
+
+	System.out.println("Safe prime generation, average of " + samples + " primes");
+	System.out.println(" bits  probablePrime loop (ms)  sieve (ms)  speedup");
+	for (int bits : sizes) {
+	    double loop = time(false, bits, samples, rnd);
+	    double sieve = time(true, bits, samples, rnd);
+	    System.out.printf("%5d  %23.1f  %10.1f  %7.2f%n", bits, loop, sieve, loop / sieve);
+	}
+    }
+}
@@ -0,0 +1,229 @@
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class keeps a bounded pool of pre-generated safe primes p = 2q + 1 for
+ * each registered bit size.  Low priority background threads refill the pools
+ * whenever a prime is taken, so key generation can usually take its primes
+ * immediately instead of searching for them on the caller's thread.  Each
+ * producer reserves the slot it searches for, so producers beyond the number
+ * of free slots sleep instead of duplicating work.
+ *
+ * @author Pujan Bhatta
+ * @version 1.0
+ */
+public class SafePrimePool
+{
+    private final int capacity;  // primes kept per bit size
+    private final Map<Integer, BlockingQueue<BigInteger>> pools;  // ready primes by bit size
+    private final Map<Integer, Integer> pending;  // searches under way by bit size, guarded by this
+    private final List<Thread> producers;  // background generator threads
+    private final SecureRandom rnd;
+    private volatile boolean stopped;
+
+
+
+    /**
+     * Constructor, starts the producer threads.  Nothing is generated until a
+     * bit size is registered.
+     * @param capacity number of primes to keep ready for each bit size
+     * @param threads number of background generator threads
+     */
+    public SafePrimePool (int capacity, int threads)
+    {
+	this.capacity = capacity;
+	pools = new ConcurrentHashMap<Integer, BlockingQueue<BigInteger>>();
+	pending = new HashMap<Integer, Integer>();
+	producers = new ArrayList<Thread>();
+	rnd = new SecureRandom();
+	stopped = false;
+
+	for (int i = 0; i < threads; i++) {
+	    Thread t = new Thread("Safe prime producer " + i) {
+		    public void run () {
+			produce();
+		    }
+		};
+	    t.setDaemon(true);
+	    t.setPriority(Thread.MIN_PRIORITY);
+	    producers.add(t);
+	    t.start();
+	}
+    }
+
+
+
+    /**
+     * Constructor with one producer thread per core but one, so that request
+     * threads keep a core to themselves, and no more than the capacity, since
+     * a single registered size never has more free slots than that.
+     * @param capacity number of primes to keep ready for each bit size
+     */
+    public SafePrimePool (int capacity)
+    {
+	this(capacity, Math.max(1, Math.min(capacity, Runtime.getRuntime().availableProcessors() - 1)));
+    }
+
+
+
+    /**
+     * Starts keeping primes of the given size ready.
+     * @param bits bit length of the safe primes
+     */
+    public void register (int bits)
+    {
+	if (pools.putIfAbsent(bits, new ArrayBlockingQueue<BigInteger>(capacity)) == null) {
+	    synchronized (this) {
+		notifyAll();
+	    }
+	}
+    }
+
+
+
+    /**
+     * Takes a safe prime from the pool, generating one with a search spread over
+     * all cores only if the pool is empty.  Registers the size if it was not already.
+     * @param bits bit length of the safe prime
+     * @return a safe prime p of the given size, with (p-1)/2 also prime
+     */
+    public BigInteger take (int bits)
+    {
+	register(bits);
+	BigInteger p = pools.get(bits).poll();
+
+	// wake the producers to replace it
+	synchronized (this) {
+	    notifyAll();
+	}
+
+	if (p == null)
+	    p = SafePrimeGenerator.generateParallel(bits, Runtime.getRuntime().availableProcessors());
+	return p;
+    }
+
+
+
+    /**
+     * Takes several distinct safe primes, as for an RSA modulus.  Primes ready
+     * in the pool are used first;  any still missing are searched for at the
+     * same time, sharing the cores, rather than one after the other.
+     * Registers the size if it was not already.
+     * @param bits bit length of each safe prime
+     * @param count number of primes
+     * @return distinct safe primes of the given size
+     */
+    public BigInteger[] takeDistinct (int bits, int count)
+    {
+	register(bits);
+	BlockingQueue<BigInteger> pool = pools.get(bits);
+	List<BigInteger> taken = new ArrayList<BigInteger>();
+	BigInteger p;
+	while (taken.size() < count && (p = pool.poll()) != null)
+	    if (!taken.contains(p))
+		taken.add(p);
+
+	// wake the producers to replace them
+	synchronized (this) {
+	    notifyAll();
+	}
+
+	while (taken.size() < count)
+	    for (BigInteger fresh : SafePrimeGenerator.generateDistinct(bits, count - taken.size()))
+		if (!taken.contains(fresh))
+		    taken.add(fresh);
+	return taken.toArray(new BigInteger[count]);
+    }
+
+
+
+    /**
+     * Number of primes of the given size ready to be taken.
+     */
+    public int available (int bits)
+    {
+	BlockingQueue<BigInteger> pool = pools.get(bits);
+	return pool == null ? 0 : pool.size();
+    }
+
+
+
+    /**
+     * Stops the producer threads.
+     */
+    public void shutdown ()
+    {
+	stopped = true;
+	for (Thread t : producers)
+	    t.interrupt();
+    }
+
+
+
+    /**
+     * Reserves a slot in the pool with the most room left, counting the
+     * searches already under way, so that no two producers search for the same
+     * slot.  Must be called holding the pool's lock.
+     * @return the bit size to search for, or null if every slot is full or reserved
+     */
+    private Integer reserve ()
+    {
+	Integer bits = null;
+	int space = 0;
+	for (Map.Entry<Integer, BlockingQueue<BigInteger>> e : pools.entrySet()) {
+	    Integer searching = pending.get(e.getKey());
+	    int free = e.getValue().remainingCapacity() - (searching == null ? 0 : searching);
+	    if (free > space) {
+		space = free;
+		bits = e.getKey();
+	    }
+	}
+
+	if (bits != null) {
+	    Integer searching = pending.get(bits);
+	    pending.put(bits, searching == null ? 1 : searching + 1);
+	}
+	return bits;
+    }
+
+
+
+    /**
+     * Producer loop:  fills the emptiest pool, sleeping while every slot is full
+     * or already being searched for by another producer.
+     */
+    private void produce ()
+    {
+	while (!stopped) {
+	    Integer bits;
+	    synchronized (this) {
+		bits = reserve();
+		if (bits == null) {
+		    try {
+			wait(1000);
+		    }
+		    catch (InterruptedException e) {
+			return;
+		    }
+		    continue;
+		}
+	    }
+
+	    // the reservation is released only after the prime is in the pool,
+	    // so a producer never starts a search for a slot about to be filled
+	    try {
+		pools.get(bits).offer(SafePrimeGenerator.generate(bits, rnd));
+	    }
+	    catch (CancellationException e) {
+		return;
+	    }
+	    finally {
+		synchronized (this) {
+		    pending.put(bits, pending.get(bits) - 1);
+		}
+	    }
+	}
+    }
+}
@@ -1,10 +1,14 @@
-import java.io.IOException;
+import java.io.*;
 import java.net.*;
-import java.util.Vector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class is a secure file transfer server. Opens a server socket and 
  * listens for clients.  When one connects a thread is spawned to deal with the client. 
+ * The server keeps accepting clients until "shutdown" is entered on its console.
  *
  * @author Mike Jacobson
  * @version 1.0, October 23, 2013
@@ -12,49 +16,141 @@ import java.util.Vector;
 public class Server
 {
     private ServerSocket serversock;
-    private Vector <ServerThread> serverthreads;  //holds the active threads
-    private boolean shutdown;  //allows clients to shutdown the server
+    private Set <ServerThread> serverthreads;  //holds the active connections
+    private boolean virtual;  //run each connection on a virtual thread
+    private ThreadPoolExecutor handshakes;  //bounded pool for handshake public-key work, one thread per core
+    private Semaphore handshakeSlots;  //room left in the handshake pool for public-key work
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<Runnable>();  //NIO public-key work waiting for a slot
+    private final AtomicLong busy = new AtomicLong();  //handshakes answered "busy" because the pool was full
+    private volatile NioServer nio;  //serves every client in NIO mode, or null
+    private volatile boolean shutdown;  //allows the admin to shutdown the server
     private int clientcounter;  //id numbers for the clients
-    private RSATool RSA; // RSA encryption/decryption class
+    private volatile RSATool RSA; // RSA encryption/decryption class
+    private SafePrimePool primes;  // pre-generated primes for new RSA keys
+    private String keyfile;  // where the RSA private key is saved, or null
+    private boolean parallelCRT;  // use parallel CRT decryption
+    private SessionCache sessions;  // master secrets of resumable sessions
 
     private boolean debug = false;
 
+    // number of safe primes kept ready for key rotation
+    private static final int PRIME_POOL_SIZE = 2;
+
+    // number of resumable sessions kept, and how long each can be resumed
+    private static final int SESSION_CACHE_SIZE = 1024;
+    private static final long SESSION_TTL = 10 * 60 * 1000L;
+
+    // connections the OS queues until they are accepted, so that bursts of clients are not refused
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    // full handshakes that may wait for the handshake pool, per core, before new ones are answered "busy"
+    private static final int HANDSHAKE_QUEUE_PER_CORE = 16;
+
 
 
     /**
      * Constructor, makes a new server listening on specified port.
      * @param port The port to listen on.
+     * @param keyfile File holding the RSA private key, or null to always generate one.
+     * @param parallelCRT Whether to use parallel CRT decryption.
      */
-    public Server (int port, boolean setDebug)
+    public Server (int port, boolean setDebug, String keyfile, boolean parallelCRT)
     {
 	debug = setDebug;
 	clientcounter = 0;
+	sessions = new SessionCache(SESSION_CACHE_SIZE, SESSION_TTL);
+	startHandshakePool();
 	shutdown = false;
+	this.keyfile = keyfile;
+	this.parallelCRT = parallelCRT;
 
 	// start server socket
 	try {
-	    serversock = new ServerSocket (port);
+	    // opened as a channel so that NIO mode can accept without blocking
+	    serversock = ServerSocketChannel.open().socket();
+	    serversock.bind (new InetSocketAddress (port), ACCEPT_BACKLOG);
 	}
 	catch (IOException e) {
 	    System.out.println ("Could not create server socket.");
 	    return;
 	}
 
-	// Server socket open, make a vector to store active threads
-	serverthreads = new Vector <ServerThread> (0,1);
+	// Server socket open, make a set to store active connections
+	serverthreads = ConcurrentHashMap.<ServerThread>newKeySet();
 		
 	// Output connection info for the server
 	System.out.println ("Server IP address: " + serversock.getInetAddress().getHostAddress() + ",  port " + port);
 
+	// Keep primes ready in the background so that key rotation never waits
+	primes = new SafePrimePool(PRIME_POOL_SIZE);
+	primes.register(RSATool.PRIME_BITS);
+
+	// Reuse the saved RSA private key if there is one
+	if (keyfile != null && new File(keyfile).exists()) {
+	    try {
+		System.out.println("Loading RSA private key from " + keyfile + "...");
+		RSA = RSATool.load(keyfile, setDebug);
+		RSA.setParallelCRT(parallelCRT);
+		System.out.println("Done!");
+		return;
+	    }
+	    catch (IOException e) {
+		System.out.println("Could not load RSA private key:  " + e.getMessage());
+	    }
+	}
+
 	// Generating RSA private key
 	System.out.println("Generating RSA private key...");
-	RSA = new RSATool(setDebug);
+	rotateKey();
 	System.out.println("Done!");
     }
 
 
+
+    /**
+     * Replaces the RSA key with a new one built from pooled primes, and saves it
+     * if the server has a key file.  Clients that are already connected finish
+     * with the key they were given.
+     */
+    public void rotateKey ()
+    {
+	RSATool fresh = new RSATool(debug, primes);
+	fresh.setParallelCRT(parallelCRT);
+	RSA = fresh;
+
+	// Save it so the next start can skip key generation
+	if (keyfile != null) {
+	    try {
+		fresh.save(keyfile);
+		System.out.println("Saved RSA private key to " + keyfile);
+	    }
+	    catch (IOException e) {
+		System.out.println("Could not save RSA private key to " + keyfile);
+	    }
+	}
+    }
+
+
 	
      /**
+     * accessor for the current RSA key
+     */
+    public RSATool getRSA() {
+	return RSA;
+    }
+
+
+
+    /**
+     * Hands out the id number for a new client.
+     */
+    public int nextClientID() {
+	return clientcounter++;
+    }
+
+
+
+    /**
      * accessor for debug
      */
     public boolean getDebug() {
@@ -62,6 +158,171 @@ public class Server
     }
 
 
+
+    /**
+     * accessor for the session cache
+     */
+    public SessionCache getSessions() {
+	return sessions;
+    }
+
+
+    /**
+     * Runs each new connection on a virtual thread instead of a platform thread,
+     * so that idle and slow clients do not hold an OS thread each.  The
+     * handshake's public-key work runs on the platform handshake pool, so it
+     * never occupies the few threads that carry the virtual ones.  Stays with
+     * platform threads on JDKs without virtual threads.
+     */
+    public void useVirtualThreads ()
+    {
+	if (!VirtualThreads.available()) {
+	    System.out.println("Virtual threads need Java 21 or later, using platform threads.");
+	    return;
+	}
+
+	virtual = true;
+    }
+
+
+
+    /**
+     * Starts the pool for handshake public-key work:  one platform thread per
+     * core and a bounded queue, so that a burst of new clients cannot take the
+     * CPU from transfers under way.  Each piece of public-key work holds one of
+     * the pool's slots while it is queued or running, so the queue never
+     * overflows.
+     */
+    private void startHandshakePool ()
+    {
+	int cores = Runtime.getRuntime().availableProcessors();
+	int queued = cores * HANDSHAKE_QUEUE_PER_CORE;
+	handshakeSlots = new Semaphore(cores + queued);
+	// the queue has room for every slot, since a slot is given back just before its thread is free
+	handshakes = new ThreadPoolExecutor(cores, cores, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(cores + queued),
+					    new ThreadFactory() {
+		private int count = 0;
+		public Thread newThread (Runnable r) {
+		    Thread t = new Thread(r, "handshake " + count++);
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+    }
+
+
+
+    /**
+     * Admits a new full handshake if the handshake pool has room for more
+     * public-key work.  A client that is not admitted is answered "busy" and
+     * retries later, instead of every session slowing down while the queue
+     * grows.  Resumed sessions need no public-key work and are not counted.
+     * Nothing is held while the client is on the network:  a slot is taken only
+     * when the work is handed to the pool, see handshake().
+     * @return true if the handshake may go ahead
+     */
+    public boolean admitHandshake ()
+    {
+	if (handshakeSlots.availablePermits() > 0)
+	    return true;
+	busy.incrementAndGet();
+	return false;
+    }
+
+
+
+    /**
+     * Wraps public-key work so that it gives back its slot once it has run.
+     */
+    private Runnable holdingSlot (final Runnable work)
+    {
+	return new Runnable() {
+		public void run () {
+		    try {
+			work.run();
+		    }
+		    finally {
+			releaseSlot();
+		    }
+		}
+	    };
+    }
+
+
+
+    /**
+     * Gives back the slot of finished public-key work and passes it on to work
+     * waiting for one, if any.
+     */
+    private void releaseSlot ()
+    {
+	handshakeSlots.release();
+	startWaiting();
+    }
+
+
+
+    /**
+     * Starts a handshake's public-key computation on the handshake pool without
+     * waiting for it, for the NIO server whose event loops must not block.  If
+     * the pool is full the work waits for a slot to be given back.
+     * @param work the computation, which hands its result back to the connection
+     */
+    public void handshakeAsync (Runnable work)
+    {
+	waiting.add(work);
+	startWaiting();
+    }
+
+
+
+    /**
+     * Hands waiting public-key work to the pool for as long as there are free
+     * slots.
+     */
+    private void startWaiting ()
+    {
+	while (!waiting.isEmpty() && handshakeSlots.tryAcquire()) {
+	    Runnable work = waiting.poll();
+	    if (work != null)
+		handshakes.execute(holdingSlot(work));
+	    else
+		handshakeSlots.release();
+	}
+    }
+
+
+
+    /**
+     * Runs a handshake's public-key computation on the handshake pool and waits
+     * for its result, first waiting for a slot if the pool is full.
+     * @param work the computation
+     * @return its result
+     */
+    public <T> T handshake (Callable<T> work)
+    {
+	FutureTask<T> task = new FutureTask<T>(work);
+	try {
+	    handshakeSlots.acquire();
+	    handshakes.execute(holdingSlot(task));
+	    return task.get();
+	}
+	catch (ExecutionException e) {
+	    Throwable cause = e.getCause();
+	    if (cause instanceof RuntimeException)
+		throw (RuntimeException) cause;
+	    if (cause instanceof Error)
+		throw (Error) cause;
+	    throw new IllegalStateException(cause);
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IllegalStateException("Interrupted during the handshake", e);
+	}
+    }
+
+
+
    /**
      * Allows threads to check and see if the server is shutting down.
      * @return True if the server has been told to shutdown.
@@ -75,39 +336,38 @@ public class Server
 
     /**
      * Called by a thread who's client has asked to exit.  Gets rid of the thread.
-     * @param st The ServerThread to remove from the vector of active connections.
+     * @param st The ServerThread to remove from the set of active connections.
      */
     public void kill (ServerThread st)
     {
 	System.out.println ("Killing Client " + st.getID() + ".");
-		
-	/* Find the thread in the vector and remove it. */
-	for (int i = 0; i < serverthreads.size(); i++) {
-	    if (serverthreads.elementAt(i) == st)
-		serverthreads.remove(i);
-	}
+	serverthreads.remove(st);
     }
 	
     /**
-     * Called by a thread who's client has instructed the server to shutdown.
+     * Called by the admin console when the server is instructed to shutdown.
      */
-    public void killall ()
+    public synchronized void killall ()
     {
 	shutdown = true;
 	System.out.println ("Shutting Down Server.");
+	primes.shutdown();
 		
 	/* For each active thread, close it's socket.  This will cause the thread
 	 * to stop blocking because of the IO operation, and check the shutdown flag.
 	 * The thread will then exit itself when it sees shutdown is true.  Then exits. */
-	for (int i = serverthreads.size() - 1; i >= 0; i--) {
+	for (ServerThread st : serverthreads) {
 	    try {
-		System.out.println ("Killing Client " + serverthreads.elementAt(i).getID() + ".");
-		serverthreads.elementAt(i).getSocket().close();
+		System.out.println ("Killing Client " + st.getID() + ".");
+		st.getSocket().close();
 	    }
 	    catch (IOException e)
 		{System.out.println ("Could not close socket.");}
-	    serverthreads.remove(i);
+	    serverthreads.remove(st);
 	}
+	if (nio != null)
+	    nio.close();
+	handshakes.shutdownNow();
 	try {
 	    serversock.close();
 	} 
@@ -116,6 +376,52 @@ public class Server
 	}		
     }
 	
+    /**
+     * Starts a thread reading admin commands from standard input.  "status" prints
+     * the number of active clients, "rotate" replaces the RSA key and "shutdown"
+     * stops the server.
+     */
+    public void startConsole ()
+    {
+	Thread console = new Thread () {
+		public void run () {
+		    BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in));
+		    try {
+			String command;
+			while (!shutdown && (command = stdIn.readLine()) != null) {
+			    command = command.trim();
+			    if (command.equals("shutdown")) {
+				killall();
+			    }
+			    else if (command.equals("status")) {
+				int active = serverthreads.size() + (nio != null ? nio.connections() : 0);
+				System.out.println(active + " active clients, " + clientcounter + " connections so far.");
+				System.out.println(primes.available(RSATool.PRIME_BITS) + " primes ready for key rotation.");
+				System.out.println(sessions.size() + " sessions cached, " + sessions.hits() + " resumed, "
+						   + sessions.misses() + " not found or expired.");
+				System.out.println(handshakes.getActiveCount() + " handshakes running, " + (handshakes.getQueue().size() + waiting.size())
+						   + " queued, " + busy.get() + " turned away busy.");
+			    }
+			    else if (command.equals("rotate")) {
+				rotateKey();
+				System.out.println("RSA key rotated.");
+			    }
+			    else if (command.length() > 0) {
+				System.out.println("Unknown command.  Use \"status\", \"rotate\" or \"shutdown\".");
+			    }
+			}
+		    }
+		    catch (IOException e) {
+			System.out.println("Error reading admin command.");
+		    }
+		}
+	    };
+	console.setDaemon(true);
+	console.start();
+    }
+
+
+
     /**
      * Waits for incoming connections and spins off threads to deal with them.
      */
@@ -132,12 +438,15 @@ public class Server
 		/* Output info about the client */
 		System.out.println ("Client on machine " + client.getInetAddress().getHostAddress() + " has connected on port " + client.getLocalPort() + ".");
 				
-		/* Create a new thread to deal with the client, add it to the vector of open connections.
-		 * Finally, start the thread's execution. Start method makes the threads go by calling their
-		 * run() methods. */
+		/* Create a new ServerThread to deal with the client, add it to the set of open connections.
+		 * Finally, start a thread running it, a virtual one in virtual thread mode.  The thread
+		 * goes by calling the ServerThread's run() method. */
 		st = new ServerThread (client, this, clientcounter++, RSA);
 		serverthreads.add (st);
-		st.start ();
+		if (virtual)
+		    VirtualThreads.start(st, "Client " + st.getID());
+		else
+		    new Thread (st).start ();
 	    }
 	    catch (IOException e) {
 		/* Server Socket is closed, probably because a client told the server to shutdown */
@@ -147,13 +456,37 @@ public class Server
 
 
 
+    /**
+     * Serves every client from the given number of event loop threads with
+     * non-blocking I/O instead of a thread per client, until the server is
+     * told to shut down.  RSA decryption runs on the handshake pool.
+     * @param loops number of event loop threads
+     */
+    public void listenNio (int loops)
+    {
+	try {
+	    nio = new NioServer(this, serversock.getChannel(), loops);
+	    nio.run();
+	}
+	catch (IOException e) {
+	    if (!shutdown)
+		System.out.println ("Could not run the NIO server.");
+	}
+    }
+
+
+
     /**
      * Outputs usage instructions
      */
     public static void printUsage() {
-	System.out.println ("Usage: java Server port#");
-	System.out.println("     or java Server debug port#");
+	System.out.println ("Usage: java Server port# [debug] [keyfile filename] [parallelcrt] [virtual] [nio threads]");
 	System.out.println (" - port is a positive integer identifying the port to connect to the server");
+	System.out.println (" - debug prints protocol messages");
+	System.out.println (" - keyfile loads the RSA private key from the file, generating and saving it if the file does not exist");
+	System.out.println (" - parallelcrt splits each RSA decryption across two cores when the server is lightly loaded");
+	System.out.println (" - virtual runs each client on a virtual thread (Java 21 or later), with RSA decryption on a pool sized to the cores");
+	System.out.println (" - nio serves all clients from the given number of threads with non-blocking I/O instead of a thread per client");
     }
 
 
@@ -167,34 +500,46 @@ public class Server
     public static void main (String [] args)
     {
 	boolean setDebug = false;
+	String keyfile = null;
+	boolean parallelCRT = false;
+	boolean virtual = false;
+	int nioThreads = 0;
 
-	if (args.length < 1 || args.length > 2) {
+	if (args.length < 1) {
 	    printUsage();
 	    return;
 	}
 
-	// check if debug flag is being set
-	int port;
-	if (args.length == 2) {
-	    if (args[1].compareTo("debug") == 0) {
+	// check for the optional flags
+	int port = Integer.parseInt(args[0]);
+	for (int i = 1; i < args.length; i++) {
+	    if (args[i].compareTo("debug") == 0) {
 		setDebug = true;
-		port = Integer.parseInt(args[0]);
+	    }
+	    else if (args[i].compareTo("keyfile") == 0 && i+1 < args.length) {
+		keyfile = args[++i];
+	    }
+	    else if (args[i].compareTo("parallelcrt") == 0) {
+		parallelCRT = true;
+	    }
+	    else if (args[i].compareTo("virtual") == 0) {
+		virtual = true;
+	    }
+	    else if (args[i].compareTo("nio") == 0 && i+1 < args.length && args[i+1].matches("[1-9][0-9]*")) {
+		nioThreads = Integer.parseInt(args[++i]);
 	    }
 	    else {
 		printUsage();
 		return;
 	    }
 	}
-	else {
-	    port = Integer.parseInt(args[0]);
-	}
 
 
 
 	// initialize server and socket connection
 	Server s;
 	try {
-	    s = new Server (port,setDebug);
+	    s = new Server (port,setDebug,keyfile,parallelCRT);
 	}
 	catch (NumberFormatException e) {
 	    printUsage();
@@ -202,9 +547,17 @@ public class Server
 	    return;
 	}
 
+	if (virtual)
+	    s.useVirtualThreads();
+
 
 	// server listens to socket connections until told to shut down
-	s.listen();
+	System.out.println("Enter \"shutdown\" to stop the server.");
+	s.startConsole();
+	if (nioThreads > 0)
+	    s.listenNio(nioThreads);
+	else
+	    s.listen();
     }
 	
 
@@ -1,19 +1,21 @@
 import java.net.*;
 import java.io.*;
+import java.nio.file.*;
 import java.security.*;
 import javax.crypto.*;
 import javax.crypto.spec.*;
 import java.math.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 /**
- * This class represents a thread to deal with clients who connect to Server.  
- * Put what you want the thread to do in it's run() method.
+ * This class deals with a client who connects to Server, on a thread of its
+ * own.  Put what you want the thread to do in it's run() method.
  *
  * @author Mike Jacobson
  * @version 1.0, October 23, 2013
  */
-public class ServerThread extends Thread
+public class ServerThread implements Runnable
 {
     private Socket sock;  //The socket it communicates with the client on.
     private Server parent;  //Reference to Server object for message passing.
@@ -21,6 +23,8 @@ public class ServerThread extends Thread
     private DataOutputStream out;
     private DataInputStream in;
     private SecretKeySpec key;   // AES encryption key
+    private String records;  // record protection mode of the session
+    private CryptoSession session;  // record protection, set up by getKey
     private RSATool RSA;  // class for RSA decryption
 
 
@@ -80,37 +84,122 @@ public class ServerThread extends Thread
 
 
     /**
-     * Decrypts an AES-128 key send by a client using the server's RSA private key.
+     * Agrees on an AES key with the client.  The client presents a session ID,
+     * or an empty one, with a nonce.  If the session is cached the server answers
+     * "resume" with its own nonce and the key is derived from the session's
+     * master secret, without any RSA decryption.  Otherwise the server answers
+     * with a new session ID and its public key, and decrypts an AES-128 key sent
+     * by the client using the server's RSA private key.  The client also presents
+     * the fingerprint of the key it has cached for this server, if any;  when it
+     * matches the current key the server sends "cached" instead of n and e.
+     * If the server's handshake pool is full, a new session is answered "busy"
+     * and the connection closed, for the client to retry later.
      */
     public void getKey() {
 	debug("Starting key transport");
 
-	// Send public key to client
-	debug("Sending n to client");
-	BigInteger n = RSA.get_n();
-	byte[] encodedn = n.toByteArray();
+	// get the client's record mode, session ID, cached key fingerprint and nonce
+	byte[] clientId, clientKey, clientNonce;
 	try {
-	    CryptoUtilities.send(encodedn,out);
+	    records = CryptoUtilities.record_mode(new String(CryptoUtilities.receive(in)));
+	    clientId = CryptoUtilities.receive(in);
+	    clientKey = CryptoUtilities.receive(in);
+	    clientNonce = CryptoUtilities.receive(in);
 	}
 	catch (IOException e) {
-	    System.out.println("Error sending n to client.");
+	    System.out.println("Error receiving session ID from client.");
 	    close();
 	    return;
 	}
-	debug("Sent n = " + n);
 
-	debug("Sending e to client");
-	BigInteger e = RSA.get_e();
-	byte[] encodede = e.toByteArray();
+	SessionCache sessions = parent.getSessions();
+	byte[] cached = clientId.length > 0 ? sessions.get(clientId) : null;
+	if (cached != null) {
+	    debug("Resuming session " + CryptoUtilities.toHexString(clientId));
+	    byte[] serverNonce = CryptoUtilities.nonce();
+	    try {
+		CryptoUtilities.queue(records.getBytes(),out);
+		CryptoUtilities.queue(CryptoUtilities.HANDSHAKE_RESUME.getBytes(),out);
+		CryptoUtilities.send(serverNonce,out);
+	    }
+	    catch (IOException e) {
+		System.out.println("Error resuming session with client.");
+		close();
+		return;
+	    }
+	    key = CryptoUtilities.resumption_key(cached, clientNonce, serverNonce);
+	    debug("AES key = " + CryptoUtilities.toHexString(key.getEncoded()));
+	    session = new CryptoSession(key, records);
+	    return;
+	}
+
+	// a new session needs RSA decryption:  turn the client away if the handshake pool is full
+	if (!parent.admitHandshake()) {
+	    System.out.println("Handshake pool full, client " + idnum + " told to retry.");
+	    try {
+		CryptoUtilities.queue(records.getBytes(),out);
+		CryptoUtilities.send(CryptoUtilities.HANDSHAKE_BUSY.getBytes(),out);
+	    }
+	    catch (IOException e) {
+		System.out.println("Error sending busy answer to client.");
+	    }
+	    close();
+	    return;
+	}
+
+	// Send a new session ID and the public key to client in one flight
+	byte[] sessionId = sessions.newId();
 	try {
-	    CryptoUtilities.send(encodede,out);
+	    CryptoUtilities.queue(records.getBytes(),out);
+	    CryptoUtilities.queue(CryptoUtilities.HANDSHAKE_FULL.getBytes(),out);
+	    CryptoUtilities.queue(sessionId,out);
 	}
-	catch (IOException ex) {
-	    System.out.println("Error sending e to client.");
+	catch (IOException e) {
+	    System.out.println("Error sending session ID to client.");
 	    close();
 	    return;
 	}
-	debug("Sent e = " + e);
+
+	// the key is left out if the client already has it
+	if (Arrays.equals(clientKey, RSA.fingerprint())) {
+	    debug("Client has the public key cached");
+	    try {
+		CryptoUtilities.send(CryptoUtilities.PUBKEY_CACHED.getBytes(),out);
+	    }
+	    catch (IOException e) {
+		System.out.println("Error sending public key to client.");
+		close();
+		return;
+	    }
+	}
+	else {
+	    debug("Sending n to client");
+	    BigInteger n = RSA.get_n();
+	    byte[] encodedn = n.toByteArray();
+	    try {
+		CryptoUtilities.queue(CryptoUtilities.PUBKEY_SENT.getBytes(),out);
+		CryptoUtilities.queue(encodedn,out);
+	    }
+	    catch (IOException e) {
+		System.out.println("Error sending n to client.");
+		close();
+		return;
+	    }
+	    debug("Sent n = " + n);
+
+	    debug("Sending e to client");
+	    BigInteger e = RSA.get_e();
+	    byte[] encodede = e.toByteArray();
+	    try {
+		CryptoUtilities.send(encodede,out);
+	    }
+	    catch (IOException ex) {
+		System.out.println("Error sending e to client.");
+		close();
+		return;
+	    }
+	    debug("Sent e = " + e);
+	}
 
 
 	// get encrypted AES key
@@ -130,7 +219,11 @@ public class ServerThread extends Thread
 	debug("Decrypting the key");
 	byte[] encodedKey = null;
 	try {
-	    encodedKey = RSA.decrypt(encryptedKey);
+	    encodedKey = parent.handshake(new Callable<byte[]>() {
+		    public byte[] call () {
+			return RSA.decrypt(encryptedKey);
+		    }
+		});
 	}
 	catch (IllegalArgumentException ex) {
 	    System.out.println(ex);
@@ -149,6 +242,12 @@ public class ServerThread extends Thread
 
 	// initialize the AES key
         key = new SecretKeySpec(raw, "AES");
+
+	// the session can be resumed from now on
+	sessions.put(sessionId, CryptoUtilities.master_from_seed(raw));
+
+	// set up record protection for the rest of the connection
+	session = new CryptoSession(key, records);
    }
 
 
@@ -164,7 +263,7 @@ public class ServerThread extends Thread
 	String outfilename;
 	try {
 	    debug("Receiving output file name");
-	    outfilename = new String(CryptoUtilities.receiveAndDecrypt(key,in));
+	    outfilename = new String(session.receiveAndOpen(in));
 	    debug("Got file name = " + outfilename);
 	}
 	catch (IOException e) {
@@ -178,10 +277,10 @@ public class ServerThread extends Thread
 
 
 	// get the file size
-	int size;
+	long size;
 	try {
 	    debug("Receiving file size");
-	    size = Integer.parseInt(new String(CryptoUtilities.receiveAndDecrypt(key,in)));	
+	    size = Long.parseLong(new String(session.receiveAndOpen(in)));	
 	    debug("Got file size = " + size);
 	}
 	catch (IOException e) {
@@ -193,13 +292,18 @@ public class ServerThread extends Thread
 
 	System.out.println("File size = " + size);
 
+	// large files arrive as a stream of chunks and are written as they are verified
+	if (size > CryptoUtilities.stream_threshold(records))
+	    return receiveStream(outfilename, size);
 
 
-	// get the encrypted, integrity-protected file
-	byte[] hashed_plaintext;
+	// get the encrypted, integrity-protected file, then decrypt and check
+	// validity of MAC or tag (in cbc-etm mode, check the MAC first)
+	byte[] plaintext;
+	session.setParallelCBC(true);  // a large CBC record is decrypted on several cores
 	try {
-	    debug("Receiving and decrypting file with MAC appended");
-	    hashed_plaintext = CryptoUtilities.receiveAndDecrypt(key,in);
+	    debug("Receiving file in " + records + " record mode");
+	    plaintext = session.receiveRecord(in);
 	}
 	catch (IOException e) {
 	    System.out.println("Error receiving encrypted file");
@@ -208,16 +312,12 @@ public class ServerThread extends Thread
 	}
 
 
-	// check validity of MAC.  Write to the file if valid.
-	debug("Checking MAC");
+	// Write to the file if valid.
 	boolean fileOK = false;
-	if (CryptoUtilities.verify_hash(hashed_plaintext,key)) {
+	if (plaintext != null) {
 	    debug("Message digest OK.  Writing file.");
 	    System.out.println("Message digest OK. Writing file");
 
-	    // extract plaintext and output to file
-	    byte[] plaintext = CryptoUtilities.extract_message(hashed_plaintext);
-
 	    // writing file
 	    FileOutputStream outfile = null;
 	    try {
@@ -246,7 +346,7 @@ public class ServerThread extends Thread
 	    // send acknowledgement to client
 	    try {
 		debug("Sending \"passed\" acknowledgement.");
-		CryptoUtilities.encryptAndSend("Passed".getBytes(),key,out);
+		session.sealAndSend("Passed".getBytes(),out);
 	    }
 	    catch (IOException e) {
 		System.out.println("Error sending passed acknowledgement.");
@@ -261,7 +361,7 @@ public class ServerThread extends Thread
 
 	    try {
 		debug("Sending \"Failed\" acknowledgement.");
-		CryptoUtilities.encryptAndSend("Failed".getBytes(),key,out);
+		session.sealAndSend("Failed".getBytes(),out);
 	    }
 	    catch (IOException e) {
 		System.out.println("Error sending failed acknowledgement.");
@@ -276,6 +376,75 @@ public class ServerThread extends Thread
 
 
 
+    /**
+     * Receives a file sent as a stream of chunks.  Each chunk is written to a
+     * temporary file as soon as its MAC has been checked, and the temporary file
+     * replaces the output file once the trailer has been verified.
+     * @param outfilename name of the output file
+     * @param size number of bytes announced by the client
+     * @return true if file transfer was successful
+     */
+    private boolean receiveStream(String outfilename, long size) {
+	debug("Receiving and decrypting file as a stream of chunks");
+	File partfile = new File(outfilename + ".part");
+
+	// receive the chunks, writing each verified chunk straight to disk
+	boolean fileOK;
+	try {
+	    FileOutputStream outfile = new FileOutputStream(partfile);
+	    try {
+		fileOK = session.receiveAndDecryptStream(in,outfile,size);
+	    }
+	    finally {
+		outfile.close();
+	    }
+	}
+	catch (IOException e) {
+	    System.out.println("Error receiving encrypted file");
+	    partfile.delete();
+	    close();
+	    return false;
+	}
+
+	// move the complete file into place, or discard it
+	if (fileOK) {
+	    debug("Message digests OK.  Writing file.");
+	    try {
+		Files.move(partfile.toPath(), Paths.get(outfilename), StandardCopyOption.REPLACE_EXISTING);
+	    }
+	    catch (IOException e) {
+		System.out.println("Error writing decrypted file.");
+		partfile.delete();
+		close();
+		return false;
+	    }
+	}
+	else {
+	    System.out.println("Integrity check failed.  File not written.");
+	    partfile.delete();
+	}
+
+	// send acknowledgement to client
+	String ack = fileOK ? "Passed" : "Failed";
+	try {
+	    debug("Sending \"" + ack + "\" acknowledgement.");
+	    session.sealAndSend(ack.getBytes(),out);
+	}
+	catch (IOException e) {
+	    System.out.println("Error sending " + ack.toLowerCase() + " acknowledgement.");
+	    close();
+	    return fileOK;
+	}
+
+	if (fileOK)
+	    System.out.println("File written successfully.");
+
+	close();
+	return fileOK;
+    }
+
+
+
     /**
      * Shuts down the socket connection
      */
@@ -299,14 +468,17 @@ public class ServerThread extends Thread
 	
     /**
      * This is what the thread does as it executes.  Gets the encryption key,
-     * receives a file from the client, and shuts down.
+     * receives a file from the client, and removes itself from the server.  The
+     * server itself keeps running until it is told to shut down.
      */
     public void run ()
     {
 	// open input and output streams for file transfer
 	try {
-	    in = new DataInputStream(sock.getInputStream());
-	    out = new DataOutputStream(sock.getOutputStream());
+	    // messages are flushed at the end of each flight, so Nagle's algorithm only adds delay
+	    sock.setTcpNoDelay(true);
+	    in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+	    out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
 	}
 	catch (UnknownHostException e) {
 	    System.out.println ("Unknown host error.");
@@ -319,14 +491,18 @@ public class ServerThread extends Thread
 	    return;
 	}
 
-	// get the encryption key
-	getKey();
-
-	// do file transfer
-	receiveFile();
+	try {
+	    // get the encryption key
+	    getKey();
 
-	// shut down the client and kill the server
-	close();
-	parent.killall();
+	    // do file transfer
+	    if (key != null)
+		receiveFile();
+	}
+	finally {
+	    // shut down the client, leaving the server running
+	    close();
+	    parent.kill(this);
+	}
     }
 }
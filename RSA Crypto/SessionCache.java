@@ -0,0 +1,130 @@
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the master secrets of recent sessions so that a client
+ * reconnecting with a session ID can skip the public key handshake.  The cache
+ * holds at most a fixed number of sessions, evicting the least recently used
+ * one when full, and a session expires a fixed time after its full handshake
+ * no matter how often it is resumed.
+ *
+ * @author Pujan Bhatta
+ * @version 1.0
+ */
+public class SessionCache
+{
+    /**
+     * A cached master secret and its expiry time.
+     */
+    private static class Session
+    {
+	final byte[] master;
+	final long expires;
+
+	Session (byte[] master, long expires)
+	{
+	    this.master = master;
+	    this.expires = expires;
+	}
+    }
+
+    private final long ttl;  // lifetime of a session in milliseconds
+    private final Map<ByteBuffer, Session> sessions;  // sessions by ID, least recently used first
+    private final SecureRandom rnd;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+
+
+    /**
+     * Constructor.
+     * @param capacity maximum number of sessions kept
+     * @param ttl lifetime of a session in milliseconds
+     */
+    public SessionCache (final int capacity, long ttl)
+    {
+	this.ttl = ttl;
+	rnd = new SecureRandom();
+	sessions = new LinkedHashMap<ByteBuffer, Session>(16, 0.75f, true) {
+		protected boolean removeEldestEntry (Map.Entry<ByteBuffer, Session> eldest) {
+		    return size() > capacity;
+		}
+	    };
+    }
+
+
+
+    /**
+     * Generates a new unpredictable session ID.
+     */
+    public byte[] newId ()
+    {
+	byte[] id = new byte[CryptoUtilities.SESSION_ID_LEN];
+	rnd.nextBytes(id);
+	return id;
+    }
+
+
+
+    /**
+     * Stores the master secret of a session after its full handshake.
+     * @param id session ID
+     * @param master master secret
+     */
+    public synchronized void put (byte[] id, byte[] master)
+    {
+	sessions.put(ByteBuffer.wrap(id.clone()), new Session(master.clone(), System.currentTimeMillis() + ttl));
+    }
+
+
+
+    /**
+     * Looks up a session, counting a hit or a miss.
+     * @param id session ID presented by a client
+     * @return the master secret, or null if the session is unknown or expired
+     */
+    public synchronized byte[] get (byte[] id)
+    {
+	ByteBuffer key = ByteBuffer.wrap(id);
+	Session s = sessions.get(key);
+	if (s != null && s.expires < System.currentTimeMillis()) {
+	    sessions.remove(key);
+	    s = null;
+	}
+
+	if (s == null) {
+	    misses.incrementAndGet();
+	    return null;
+	}
+	hits.incrementAndGet();
+	return s.master.clone();
+    }
+
+
+
+    /**
+     * Number of sessions currently cached, including expired ones not yet evicted.
+     */
+    public synchronized int size ()
+    {
+	return sessions.size();
+    }
+
+    /**
+     * Number of successful resumptions.
+     */
+    public long hits ()
+    {
+	return hits.get();
+    }
+
+    /**
+     * Number of session IDs that were unknown or expired.
+     */
+    public long misses ()
+    {
+	return misses.get();
+    }
+}
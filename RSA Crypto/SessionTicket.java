@@ -0,0 +1,135 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * This class is the client's record of a resumable session:  the server it
+ * belongs to, the session ID issued by the server and the master secret.  It
+ * is kept in a file readable only by its owner, so that the next run of the
+ * client can resume the session.
+ *
+ * @author Pujan Bhatta
+ * @version 1.0
+ */
+public class SessionTicket
+{
+    private final String host;
+    private final int port;
+    private final byte[] id;
+    private final byte[] master;
+
+
+
+    /**
+     * Constructor.
+     * @param host server the session belongs to, as given to the client
+     * @param port server port
+     * @param id session ID issued by the server
+     * @param master master secret of the session
+     */
+    public SessionTicket (String host, int port, byte[] id, byte[] master)
+    {
+	this.host = host;
+	this.port = port;
+	this.id = id;
+	this.master = master;
+    }
+
+
+
+    /**
+     * Loads the ticket for the given server.
+     * @param filename name of the ticket file
+     * @param host server the client connects to
+     * @param port server port
+     * @return the ticket, or null if the file is missing, unreadable, corrupt or belongs to another server
+     */
+    public static SessionTicket load (String filename, String host, int port)
+    {
+	try {
+	    // the file is small, so it is read whole and every length checked against what is left of it
+	    DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(Paths.get(filename))));
+	    String h = new String(field(in));
+	    int p = in.readInt();
+	    byte[] id = field(in);
+	    byte[] master = field(in);
+	    if (!h.equals(host) || p != port || id.length != CryptoUtilities.SESSION_ID_LEN)
+		return null;
+	    return new SessionTicket(h, p, id, master);
+	}
+	catch (IOException e) {
+	    return null;
+	}
+	catch (RuntimeException e) {
+	    return null;
+	}
+    }
+
+
+
+    /**
+     * Reads one length-prefixed field of a ticket file.
+     * @throws IOException if the length is negative or beyond the end of the file
+     */
+    private static byte[] field (DataInputStream in) throws IOException
+    {
+	int size = in.readInt();
+	if (size < 0 || size > in.available())
+	    throw new IOException("Bad session ticket");
+	byte[] field = new byte[size];
+	in.readFully(field);
+	return field;
+    }
+
+
+
+    /**
+     * Saves the ticket to a file readable only by its owner, replacing any
+     * previous ticket.  The ticket is written to a temporary file created with
+     * those permissions and then moved into place, so the master secret is
+     * never readable by others and an interrupted save leaves the old ticket.
+     * @param filename name of the ticket file
+     * @throws IOException if the file cannot be written
+     */
+    public void save (String filename) throws IOException
+    {
+	Path ticketfile = Paths.get(filename).toAbsolutePath();
+	Path temp;
+	try {
+	    temp = Files.createTempFile(ticketfile.getParent(), ticketfile.getFileName().toString(), ".tmp",
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+	}
+	catch (UnsupportedOperationException e) {
+	    // not a POSIX file system:  restrict the file before anything is written to it
+	    temp = Files.createTempFile(ticketfile.getParent(), ticketfile.getFileName().toString(), ".tmp");
+	    temp.toFile().setReadable(false, false);
+	    temp.toFile().setReadable(true, true);
+	}
+
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+	try {
+	    CryptoUtilities.queue(host.getBytes(), out);
+	    out.writeInt(port);
+	    CryptoUtilities.queue(id, out);
+	    CryptoUtilities.queue(master, out);
+	    out.close();
+	    Files.move(temp, ticketfile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	finally {
+	    out.close();
+	    Files.deleteIfExists(temp);
+	}
+    }
+
+
+
+    public byte[] get_id ()
+    {
+	return id;
+    }
+
+    public byte[] get_master ()
+    {
+	return master;
+    }
+}